@@ -0,0 +1,294 @@
+package com.mediabrowser;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ArtworkDiskCache {
+  private static final String TAG = "ArtworkDiskCache";
+
+  public static final long DEFAULT_MAX_BYTES = 50 * 1024 * 1024;
+
+  private static final String DIRECTORY_NAME = "artwork";
+  private static final String JOURNAL_NAME = "journal";
+  private static final String JOURNAL_TMP_NAME = "journal.tmp";
+  private static final String TMP_SUFFIX = ".tmp";
+
+  private static final String CLEAN = "CLEAN";
+  private static final String READ = "READ";
+  private static final String REMOVE = "REMOVE";
+
+  // Rewrite the journal once it holds this many lines that no longer matter
+  private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static ArtworkDiskCache instance;
+
+  private final File directory;
+
+  private final File journalFile;
+
+  private final AtomicInteger nextTempId = new AtomicInteger();
+
+  // Access ordered, eldest first. Guarded by this, like everything below.
+  private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  private long size;
+
+  private long maxBytes = DEFAULT_MAX_BYTES;
+
+  private Writer journalWriter;
+
+  private int redundantOps;
+
+  private ArtworkDiskCache(File directory) {
+    this.directory = directory;
+    this.journalFile = new File(directory, JOURNAL_NAME);
+    open();
+  }
+
+  public static synchronized ArtworkDiskCache getInstance(Context context) {
+    if (instance == null) {
+      instance = new ArtworkDiskCache(new File(context.getApplicationContext().getCacheDir(), DIRECTORY_NAME));
+    }
+    return instance;
+  }
+
+  public static String keyFor(Uri remoteUri) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      byte[] hash = digest.digest(remoteUri.toString().getBytes(UTF_8));
+      StringBuilder key = new StringBuilder(hash.length * 2);
+      for (byte b : hash) {
+        key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      return key.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  public synchronized void setMaxBytes(long maxBytes) {
+    this.maxBytes = maxBytes > 0 ? maxBytes : DEFAULT_MAX_BYTES;
+    trimToSize();
+  }
+
+  // Doesn't count as a use, so checks like prefetching don't reorder or journal anything
+  public synchronized boolean contains(String key) {
+    return entries.containsKey(key);
+  }
+
+  public synchronized File get(String key) {
+    // Also moves the entry to the most recently used end
+    Long length = entries.get(key);
+    if (length == null) {
+      return null;
+    }
+    File file = fileFor(key);
+    if (!file.exists()) {
+      // Deleted behind our back, e.g. by the system clearing the cache dir
+      entries.remove(key);
+      size -= length;
+      appendJournal(REMOVE, key);
+      return null;
+    }
+    appendJournal(READ, key);
+    return file;
+  }
+
+  // A file in the cache directory that commit can atomically rename into place
+  public File newTempFile(String key) {
+    return new File(directory, key + "." + nextTempId.incrementAndGet() + TMP_SUFFIX);
+  }
+
+  public synchronized File commit(String key, File tmp) throws IOException {
+    if (tmp.length() > maxBytes) {
+      // Trimming would evict it right away and leave the caller a file that no longer exists
+      tmp.delete();
+      throw new IOException("Artwork of " + tmp.length() + " bytes is larger than the whole cache");
+    }
+    File file = fileFor(key);
+    if (!tmp.renameTo(file)) {
+      tmp.delete();
+      throw new IOException("Could not move " + tmp + " into the artwork cache");
+    }
+    Long previous = entries.put(key, file.length());
+    if (previous != null) {
+      size -= previous;
+      redundantOps++;
+    }
+    size += file.length();
+    appendJournal(CLEAN, key + " " + file.length());
+    trimToSize();
+    return file;
+  }
+
+  private File fileFor(String key) {
+    return new File(directory, key);
+  }
+
+  private synchronized void open() {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      Log.e(TAG, "Could not create " + directory);
+    }
+    if (journalFile.exists()) {
+      try {
+        readJournal();
+      } catch (IOException e) {
+        Log.w(TAG, "Artwork cache journal is corrupt, starting over", e);
+        entries.clear();
+        size = 0;
+      }
+    }
+    deleteUntrackedFiles();
+    rebuildJournal();
+    trimToSize();
+  }
+
+  private void readJournal() throws IOException {
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] parts = line.split(" ");
+        if (parts.length < 2) {
+          throw new IOException("Unexpected journal line: " + line);
+        }
+        String key = parts[1];
+        switch (parts[0]) {
+          case CLEAN:
+            if (parts.length != 3) {
+              throw new IOException("Unexpected journal line: " + line);
+            }
+            Long previous = entries.put(key, Long.parseLong(parts[2]));
+            if (previous != null) {
+              size -= previous;
+            }
+            size += Long.parseLong(parts[2]);
+            break;
+          case READ:
+            // Only the access order matters
+            entries.get(key);
+            break;
+          case REMOVE:
+            Long removed = entries.remove(key);
+            if (removed != null) {
+              size -= removed;
+            }
+            break;
+          default:
+            throw new IOException("Unexpected journal line: " + line);
+        }
+      }
+    } catch (NumberFormatException e) {
+      throw new IOException(e);
+    }
+
+    // Drop entries whose file went missing or doesn't match what was written
+    Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<String, Long> entry = iterator.next();
+      File file = fileFor(entry.getKey());
+      if (!file.exists() || file.length() != entry.getValue()) {
+        file.delete();
+        size -= entry.getValue();
+        iterator.remove();
+      }
+    }
+  }
+
+  private void deleteUntrackedFiles() {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      String name = file.getName();
+      // Leftover temp files are writes that never committed
+      if (!name.equals(JOURNAL_NAME) && !entries.containsKey(name)) {
+        file.delete();
+      }
+    }
+  }
+
+  private void rebuildJournal() {
+    closeJournal();
+    File tmp = new File(directory, JOURNAL_TMP_NAME);
+    try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), UTF_8))) {
+      // Eldest first, so replaying restores the access order
+      for (Map.Entry<String, Long> entry : entries.entrySet()) {
+        writer.write(CLEAN + " " + entry.getKey() + " " + entry.getValue() + "\n");
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Could not write the artwork cache journal", e);
+      tmp.delete();
+      return;
+    }
+    if (!tmp.renameTo(journalFile)) {
+      Log.e(TAG, "Could not replace the artwork cache journal");
+      tmp.delete();
+      return;
+    }
+    redundantOps = 0;
+    try {
+      journalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), UTF_8));
+    } catch (IOException e) {
+      Log.e(TAG, "Could not open the artwork cache journal", e);
+    }
+  }
+
+  private void appendJournal(String op, String args) {
+    if (!op.equals(CLEAN)) {
+      redundantOps++;
+    }
+    if (journalWriter != null) {
+      try {
+        journalWriter.write(op + " " + args + "\n");
+        journalWriter.flush();
+      } catch (IOException e) {
+        Log.e(TAG, "Could not append to the artwork cache journal", e);
+      }
+    }
+    if (redundantOps >= REDUNDANT_OP_COMPACT_THRESHOLD && redundantOps >= entries.size()) {
+      rebuildJournal();
+    }
+  }
+
+  private void closeJournal() {
+    if (journalWriter != null) {
+      try {
+        journalWriter.close();
+      } catch (IOException ignored) {
+      }
+      journalWriter = null;
+    }
+  }
+
+  private void trimToSize() {
+    Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+    while (size > maxBytes && iterator.hasNext()) {
+      Map.Entry<String, Long> eldest = iterator.next();
+      iterator.remove();
+      size -= eldest.getValue();
+      fileFor(eldest.getKey()).delete();
+      appendJournal(REMOVE, eldest.getKey());
+    }
+  }
+}
@@ -0,0 +1,300 @@
+package com.mediabrowser;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class ArtworkFetcher {
+  public static final int DOWNLOAD_TIMEOUT_SECONDS = 30;
+
+  // Keeps binder threads and the network from being swamped by a grid of icons
+  private static final int MAX_CONCURRENT_DOWNLOADS = 4;
+
+  // HttpURLConnection doesn't follow redirects between http and https, so all of them are followed here
+  private static final int MAX_REDIRECTS = 5;
+  private static final int HTTP_TEMPORARY_REDIRECT = 307;
+  private static final int HTTP_PERMANENT_REDIRECT = 308;
+
+  private static ArtworkFetcher instance;
+
+  private final Context context;
+
+  private final ArtworkDiskCache diskCache;
+
+  private final ThreadPoolExecutor executor;
+
+  // Copies finished downloads to readers that joined them late, off the binder threads and download slots
+  private final ThreadPoolExecutor copier;
+
+  // One download per cache key, every concurrent caller shares its future
+  private final ConcurrentHashMap<String, DownloadTask> inFlight = new ConcurrentHashMap<>();
+
+  private ArtworkFetcher(Context context) {
+    this.context = context;
+    this.diskCache = ArtworkDiskCache.getInstance(context);
+    executor = new ThreadPoolExecutor(MAX_CONCURRENT_DOWNLOADS, MAX_CONCURRENT_DOWNLOADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    executor.allowCoreThreadTimeOut(true);
+    copier = new ThreadPoolExecutor(MAX_CONCURRENT_DOWNLOADS, MAX_CONCURRENT_DOWNLOADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    copier.allowCoreThreadTimeOut(true);
+  }
+
+  public static synchronized ArtworkFetcher getInstance(Context context) {
+    if (instance == null) {
+      instance = new ArtworkFetcher(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  public Future<File> fetch(Uri remoteUri) {
+    String key = ArtworkDiskCache.keyFor(remoteUri);
+    File cached = diskCache.get(key);
+    if (cached != null) {
+      FutureTask<File> done = new FutureTask<>(() -> cached);
+      done.run();
+      return done;
+    }
+
+    DownloadTask task = new DownloadTask(key, () -> download(key, remoteUri, null));
+    DownloadTask existing = inFlight.putIfAbsent(key, task);
+    if (existing != null) {
+      return existing;
+    }
+    executor.execute(task);
+    return task;
+  }
+
+  // Downloads on the calling thread instead of the pool, so a background priority prefetch never takes a
+  // download slot from artwork a client is waiting for. Joins a download already in flight.
+  public Future<File> fetchOnCallingThread(Uri remoteUri) {
+    String key = ArtworkDiskCache.keyFor(remoteUri);
+    DownloadTask task = new DownloadTask(key, () -> download(key, remoteUri, null));
+    DownloadTask existing = inFlight.putIfAbsent(key, task);
+    if (existing != null) {
+      return existing;
+    }
+    task.run();
+    return task;
+  }
+
+  // Writes the artwork into tee and closes it, never blocking the caller. A download started here
+  // streams into tee as bytes arrive; one already in flight for someone else is copied once it's done.
+  public void fetchStreaming(Uri remoteUri, ParcelFileDescriptor tee) {
+    String key = ArtworkDiskCache.keyFor(remoteUri);
+    DownloadTask task = new DownloadTask(key, () -> download(key, remoteUri, tee));
+    DownloadTask existing = inFlight.putIfAbsent(key, task);
+    if (existing == null) {
+      executor.execute(task);
+      return;
+    }
+    existing.whenDone(() -> copier.execute(() -> copyDownload(existing, tee)));
+  }
+
+  private static void copyDownload(DownloadTask download, ParcelFileDescriptor tee) {
+    try {
+      // Already done, get doesn't wait
+      File file = download.get();
+      try (InputStream in = new FileInputStream(file)) {
+        copy(in, new FileOutputStream(tee.getFileDescriptor()));
+      }
+      tee.close();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      closeWithError(tee, "Interrupted");
+    } catch (ExecutionException e) {
+      closeWithError(tee, String.valueOf(e.getCause()));
+    } catch (IOException e) {
+      closeWithError(tee, e.getMessage());
+    }
+  }
+
+  private static void closeWithError(ParcelFileDescriptor tee, String message) {
+    try {
+      tee.closeWithError(message);
+    } catch (IOException ignored) {
+    }
+  }
+
+  private File download(String key, Uri remoteUri, @Nullable ParcelFileDescriptor tee) throws IOException {
+    OutputStream teeOut = tee != null ? new FileOutputStream(tee.getFileDescriptor()) : null;
+    boolean teeClosed = false;
+    try {
+      // Another download may have finished between the cache check and this one starting
+      File cached = diskCache.get(key);
+      if (cached != null) {
+        if (teeOut != null) {
+          try (InputStream in = new FileInputStream(cached)) {
+            copy(in, teeOut);
+          }
+        }
+        return cached;
+      }
+
+      File tmp = diskCache.newTempFile(key);
+      try (InputStream in = openRemoteStream(remoteUri); OutputStream out = new FileOutputStream(tmp)) {
+        byte[] buffer = new byte[16 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          out.write(buffer, 0, read);
+          if (teeOut != null) {
+            try {
+              teeOut.write(buffer, 0, read);
+            } catch (IOException e) {
+              // The reader went away, keep filling the cache for the next one
+              teeOut = null;
+            }
+          }
+        }
+      } catch (IOException e) {
+        tmp.delete();
+        if (tee != null) {
+          tee.closeWithError(e.getMessage());
+          teeClosed = true;
+        }
+        throw e;
+      }
+      return diskCache.commit(key, tmp);
+    } finally {
+      if (tee != null && !teeClosed) {
+        tee.close();
+      }
+    }
+  }
+
+  private static void copy(InputStream in, OutputStream out) throws IOException {
+    byte[] buffer = new byte[16 * 1024];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+  }
+
+  private InputStream openRemoteStream(Uri remoteUri) throws IOException {
+    String scheme = remoteUri.getScheme();
+    if (!"http".equals(scheme) && !"https".equals(scheme)) {
+      InputStream in = context.getContentResolver().openInputStream(remoteUri);
+      if (in == null) throw new FileNotFoundException(remoteUri.toString());
+      return in;
+    }
+    URL url = new URL(remoteUri.toString());
+    for (int redirects = 0; ; redirects++) {
+      HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+      connection.setInstanceFollowRedirects(false);
+      connection.setConnectTimeout((int) TimeUnit.SECONDS.toMillis(DOWNLOAD_TIMEOUT_SECONDS));
+      connection.setReadTimeout((int) TimeUnit.SECONDS.toMillis(DOWNLOAD_TIMEOUT_SECONDS));
+      int status;
+      String location;
+      InputStream in = null;
+      try {
+        status = connection.getResponseCode();
+        location = connection.getHeaderField("Location");
+        if (status == HttpURLConnection.HTTP_OK) {
+          in = connection.getInputStream();
+          return new ConnectionInputStream(in, connection);
+        }
+      } finally {
+        if (in == null) {
+          connection.disconnect();
+        }
+      }
+      if (!isRedirect(status) || location == null) {
+        throw new IOException("HTTP " + status + " for " + remoteUri);
+      }
+      if (redirects == MAX_REDIRECTS) {
+        throw new IOException("Too many redirects for " + remoteUri);
+      }
+      // Locations may be relative to the url that redirected
+      url = new URL(url, location);
+      if (!"http".equals(url.getProtocol()) && !"https".equals(url.getProtocol())) {
+        throw new IOException("Redirect to " + url + " for " + remoteUri);
+      }
+    }
+  }
+
+  private static boolean isRedirect(int status) {
+    return status == HttpURLConnection.HTTP_MOVED_PERM
+      || status == HttpURLConnection.HTTP_MOVED_TEMP
+      || status == HttpURLConnection.HTTP_SEE_OTHER
+      || status == HTTP_TEMPORARY_REDIRECT
+      || status == HTTP_PERMANENT_REDIRECT;
+  }
+
+  // Releases the connection along with the stream, whether the download finished or failed
+  private static final class ConnectionInputStream extends FilterInputStream {
+    private final HttpURLConnection connection;
+
+    ConnectionInputStream(InputStream in, HttpURLConnection connection) {
+      super(in);
+      this.connection = connection;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        connection.disconnect();
+      }
+    }
+  }
+
+  private final class DownloadTask extends FutureTask<File> {
+    private final String key;
+
+    // Guarded by themselves
+    private final List<Runnable> callbacks = new ArrayList<>();
+    private boolean finished;
+
+    DownloadTask(String key, Callable<File> download) {
+      super(download);
+      this.key = key;
+    }
+
+    // Runs callback once the download finished or failed, right away if it already has
+    void whenDone(Runnable callback) {
+      synchronized (callbacks) {
+        if (!finished) {
+          callbacks.add(callback);
+          return;
+        }
+      }
+      callback.run();
+    }
+
+    @Override
+    protected void done() {
+      inFlight.remove(key, this);
+      List<Runnable> ready;
+      synchronized (callbacks) {
+        finished = true;
+        ready = new ArrayList<>(callbacks);
+        callbacks.clear();
+      }
+      for (Runnable callback : ready) {
+        callback.run();
+      }
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package com.mediabrowser;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class ArtworkLoader {
+  private static final String TAG = "ArtworkLoader";
+
+  private static final int POOL_SIZE = 3;
+
+  public static final long DEFAULT_DEADLINE_MS = 10000;
+
+  private static ArtworkLoader instance;
+
+  private final ExecutorService executor;
+
+  // Latest icon requested per media id and not embedded yet, so a slow older decode can't overwrite
+  // a newer icon and prefetching can retry icons that missed their deadline
+  private final Map<String, Uri> latestIconUris = new ConcurrentHashMap<>();
+
+  private volatile long deadlineMs = DEFAULT_DEADLINE_MS;
+
+  private ArtworkLoader() {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    pool.allowCoreThreadTimeOut(true);
+    executor = pool;
+  }
+
+  public static synchronized ArtworkLoader getInstance() {
+    if (instance == null) {
+      instance = new ArtworkLoader();
+    }
+    return instance;
+  }
+
+  public void setDeadlineMs(long deadlineMs) {
+    this.deadlineMs = deadlineMs;
+  }
+
+  // The item got an icon that isn't loaded here, or none at all
+  public void forget(String mediaId) {
+    latestIconUris.remove(mediaId);
+  }
+
+  // Loads the pending icon of mediaId on the calling thread, false if there is none
+  public boolean loadPending(Context context, String mediaId) {
+    Uri iconUri = latestIconUris.get(mediaId);
+    if (iconUri == null) {
+      return false;
+    }
+    loadAndPatch(context.getApplicationContext(), mediaId, iconUri, deadlineMs);
+    return true;
+  }
+
+  public Batch newBatch(Context context) {
+    return new Batch(context.getApplicationContext(), deadlineMs);
+  }
+
+  // Collects the icons of one JS call, started once the items are in the store
+  public class Batch {
+    private final Context context;
+    private final long deadlineMs;
+    private final List<String> mediaIds = new ArrayList<>();
+    private final List<Uri> iconUris = new ArrayList<>();
+
+    Batch(Context context, long deadlineMs) {
+      this.context = context;
+      this.deadlineMs = deadlineMs;
+    }
+
+    public void add(String mediaId, Uri iconUri) {
+      mediaIds.add(mediaId);
+      iconUris.add(iconUri);
+      latestIconUris.put(mediaId, iconUri);
+    }
+
+    public void start() {
+      for (int i = 0; i < mediaIds.size(); i++) {
+        final String mediaId = mediaIds.get(i);
+        final Uri iconUri = iconUris.get(i);
+        executor.execute(() -> loadAndPatch(context, mediaId, iconUri, deadlineMs));
+      }
+      mediaIds.clear();
+      iconUris.clear();
+    }
+  }
+
+  private void loadAndPatch(Context context, String mediaId, Uri iconUri, long deadlineMs) {
+    if (!iconUri.equals(latestIconUris.get(mediaId))) {
+      return;
+    }
+    Bitmap bitmap = MediaArtworkContentProvider.loadIconBitmap(context, iconUri, deadlineMs);
+    if (bitmap == null) {
+      // Stays pending for the next prefetch
+      Log.d(TAG, "No artwork for " + mediaId + " within " + deadlineMs + "ms");
+    } else {
+      // Goes through the store, so patches are coalesced into one notification per parent
+      MediaItemsStore.getInstance().updateMediaItem(mediaId, current -> {
+        if (!iconUri.equals(latestIconUris.get(mediaId))) {
+          return null;
+        }
+        return MediaBrowserUtils.withIconBitmap(current, bitmap);
+      });
+      latestIconUris.remove(mediaId, iconUri);
+    }
+  }
+}
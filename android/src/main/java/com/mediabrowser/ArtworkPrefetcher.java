@@ -0,0 +1,127 @@
+package com.mediabrowser;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Process;
+import android.support.v4.media.MediaBrowserCompat;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class ArtworkPrefetcher {
+  private static final String TAG = "ArtworkPrefetcher";
+
+  public static final int DEFAULT_AUTO_DEPTH = 2;
+
+  private static ArtworkPrefetcher instance;
+
+  // A single background priority thread that also runs the downloads, so prefetching never takes one of
+  // ArtworkFetcher's download slots
+  private final ThreadPoolExecutor executor;
+
+  private volatile boolean autoPrefetch;
+
+  private volatile int autoDepth = DEFAULT_AUTO_DEPTH;
+
+  private ArtworkPrefetcher() {
+    executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> new Thread(() -> {
+      Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+      runnable.run();
+    }, TAG));
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  public static synchronized ArtworkPrefetcher getInstance() {
+    if (instance == null) {
+      instance = new ArtworkPrefetcher();
+    }
+    return instance;
+  }
+
+  public void setAutoPrefetch(boolean enabled, int depth) {
+    autoPrefetch = enabled;
+    autoDepth = depth > 0 ? depth : DEFAULT_AUTO_DEPTH;
+  }
+
+  public void onMediaItemsSet(Context context, String parentId) {
+    if (autoPrefetch && parentId != null) {
+      List<String> parentIds = new ArrayList<>();
+      parentIds.add(parentId);
+      prefetch(context, parentIds, autoDepth);
+    }
+  }
+
+  // Warms the caches with the icons of the first page of children of each parent, depth levels down:
+  // remote artwork the car reads through the provider goes to the disk cache, embedded icons that
+  // missed their deadline are decoded into the memory cache and patched into their items.
+  public void prefetch(Context context, List<String> parentIds, int depth) {
+    final Context appContext = context.getApplicationContext();
+    final List<String> roots = new ArrayList<>(parentIds);
+    executor.execute(() -> walk(appContext, roots, depth));
+  }
+
+  private void walk(Context context, List<String> parentIds, int depth) {
+    MediaItemsStore store = MediaItemsStore.getInstance();
+    ArtworkDiskCache diskCache = ArtworkDiskCache.getInstance(context);
+    ArtworkFetcher fetcher = ArtworkFetcher.getInstance(context);
+    Set<String> visited = new HashSet<>();
+    List<String> level = parentIds;
+
+    for (int i = 0; i < depth && !level.isEmpty(); i++) {
+      List<String> nextLevel = new ArrayList<>();
+      for (String parentId : level) {
+        if (!visited.add(parentId)) {
+          continue;
+        }
+        // The first page is what a client renders first
+        List<MediaBrowserCompat.MediaItem> children = store.getMediaItemsPage(parentId, 0, store.getDefaultPageSize());
+        if (children == null) {
+          continue;
+        }
+        for (MediaBrowserCompat.MediaItem item : children) {
+          Uri remoteUri = remoteUriFor(item.getDescription().getIconUri());
+          if (remoteUri != null && !diskCache.contains(ArtworkDiskCache.keyFor(remoteUri))) {
+            awaitQuietly(fetcher, remoteUri);
+          } else if (remoteUri == null && item.getDescription().getIconBitmap() == null) {
+            ArtworkLoader.getInstance().loadPending(context, item.getMediaId());
+          }
+          if (item.isBrowsable()) {
+            nextLevel.add(item.getMediaId());
+          }
+        }
+      }
+      level = nextLevel;
+    }
+  }
+
+  private static Uri remoteUriFor(Uri iconUri) {
+    if (iconUri == null) {
+      return null;
+    }
+    if (ContentResolver.SCHEME_CONTENT.equals(iconUri.getScheme())
+      && MediaArtworkContentProvider.CONTENT_PROVIDER_AUTHORITY.equals(iconUri.getAuthority())) {
+      return MediaArtworkContentProvider.resolveRemoteUri(iconUri);
+    }
+    String scheme = iconUri.getScheme();
+    return "http".equals(scheme) || "https".equals(scheme) ? iconUri : null;
+  }
+
+  private static void awaitQuietly(ArtworkFetcher fetcher, Uri remoteUri) {
+    try {
+      fetcher.fetchOnCallingThread(remoteUri).get(ArtworkFetcher.DOWNLOAD_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException | TimeoutException e) {
+      Log.d(TAG, "Could not prefetch " + remoteUri, e);
+    }
+  }
+}
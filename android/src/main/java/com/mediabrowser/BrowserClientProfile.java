@@ -0,0 +1,145 @@
+package com.mediabrowser;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+
+import androidx.media.utils.MediaConstants;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+// What a connected browser told onGetRoot it can render, used to shape everything sent to it
+public class BrowserClientProfile {
+  // App data for JS, meaningless to anyone but the app itself
+  static final String INFO_EXTRA = "info";
+
+  private static final int ALL_FLAGS = MediaBrowserCompat.MediaItem.FLAG_BROWSABLE | MediaBrowserCompat.MediaItem.FLAG_PLAYABLE;
+
+  private final String packageName;
+
+  private final int rootChildrenLimit;
+
+  private final int rootChildrenSupportedFlags;
+
+  private final int artSizePx;
+
+  private final boolean stripInfo;
+
+  // Icons already scaled for this client, dropped along with the originals
+  private final Map<Bitmap, Bitmap> scaledIcons = new WeakHashMap<>();
+
+  // Artwork uris this client was already granted
+  private final Set<Uri> grantedArtwork = new HashSet<>();
+
+  private BrowserClientProfile(String packageName, int rootChildrenLimit, int rootChildrenSupportedFlags, int artSizePx,
+                               boolean stripInfo) {
+    this.packageName = packageName;
+    this.rootChildrenLimit = rootChildrenLimit;
+    this.rootChildrenSupportedFlags = rootChildrenSupportedFlags;
+    this.artSizePx = artSizePx;
+    this.stripInfo = stripInfo;
+  }
+
+  public static BrowserClientProfile fromRootHints(String clientPackageName, String ownPackageName, Bundle rootHints) {
+    int rootChildrenLimit = 0;
+    int rootChildrenSupportedFlags = ALL_FLAGS;
+    int artSizePx = 0;
+    if (rootHints != null) {
+      rootChildrenLimit = rootHints.getInt(MediaConstants.BROWSER_ROOT_HINTS_KEY_ROOT_CHILDREN_LIMIT, 0);
+      rootChildrenSupportedFlags = rootHints.getInt(MediaConstants.BROWSER_ROOT_HINTS_KEY_ROOT_CHILDREN_SUPPORTED_FLAGS, ALL_FLAGS);
+      artSizePx = rootHints.getInt(MediaConstants.BROWSER_ROOT_HINTS_KEY_MEDIA_ART_SIZE_PIXELS, 0);
+    }
+    return new BrowserClientProfile(clientPackageName, rootChildrenLimit, rootChildrenSupportedFlags, artSizePx,
+      !ownPackageName.equals(clientPackageName));
+  }
+
+  public String getPackageName() {
+    return packageName;
+  }
+
+  // True the first time a foreign client needs the uri granted, the app can always read its own provider
+  public boolean needsArtworkGrant(Uri artworkUri) {
+    if (!stripInfo) {
+      return false;
+    }
+    synchronized (grantedArtwork) {
+      return grantedArtwork.add(artworkUri);
+    }
+  }
+
+  public List<MediaBrowserCompat.MediaItem> shape(List<MediaBrowserCompat.MediaItem> items, boolean root) {
+    List<MediaBrowserCompat.MediaItem> shaped = null;
+    for (int i = 0; i < items.size(); i++) {
+      MediaBrowserCompat.MediaItem item = items.get(i);
+      // A null item is one the client can't show at the root
+      MediaBrowserCompat.MediaItem shapedItem = root && (item.getFlags() & rootChildrenSupportedFlags) == 0
+        ? null
+        : shape(item);
+      if (shapedItem != item && shaped == null) {
+        // Copy only once something actually differs
+        shaped = new ArrayList<>(items.subList(0, i));
+      }
+      if (shaped != null && shapedItem != null) {
+        shaped.add(shapedItem);
+      }
+    }
+    List<MediaBrowserCompat.MediaItem> result = shaped != null ? shaped : items;
+    if (root && rootChildrenLimit > 0 && result.size() > rootChildrenLimit) {
+      result = result.subList(0, rootChildrenLimit);
+    }
+    return result;
+  }
+
+  private MediaBrowserCompat.MediaItem shape(MediaBrowserCompat.MediaItem item) {
+    MediaDescriptionCompat description = item.getDescription();
+    Bundle extras = description.getExtras();
+    boolean dropInfo = stripInfo && extras != null && extras.containsKey(INFO_EXTRA);
+    Bitmap iconBitmap = description.getIconBitmap();
+    Bitmap scaledIcon = scaleIcon(iconBitmap);
+    if (!dropInfo && scaledIcon == iconBitmap) {
+      return item;
+    }
+
+    if (dropInfo) {
+      extras = new Bundle(extras);
+      extras.remove(INFO_EXTRA);
+    }
+    MediaDescriptionCompat shapedDescription = new MediaDescriptionCompat.Builder()
+      .setMediaId(description.getMediaId())
+      .setTitle(description.getTitle())
+      .setSubtitle(description.getSubtitle())
+      .setDescription(description.getDescription())
+      .setIconBitmap(scaledIcon)
+      .setIconUri(description.getIconUri())
+      .setMediaUri(description.getMediaUri())
+      .setExtras(extras)
+      .build();
+    return new MediaBrowserCompat.MediaItem(shapedDescription, item.getFlags());
+  }
+
+  // No bigger than the client draws it
+  private Bitmap scaleIcon(Bitmap iconBitmap) {
+    if (iconBitmap == null || artSizePx <= 0
+      || (iconBitmap.getWidth() <= artSizePx && iconBitmap.getHeight() <= artSizePx)) {
+      return iconBitmap;
+    }
+    synchronized (scaledIcons) {
+      Bitmap scaled = scaledIcons.get(iconBitmap);
+      if (scaled == null) {
+        float scale = (float) artSizePx / Math.max(iconBitmap.getWidth(), iconBitmap.getHeight());
+        scaled = Bitmap.createScaledBitmap(iconBitmap,
+          Math.max(1, Math.round(iconBitmap.getWidth() * scale)),
+          Math.max(1, Math.round(iconBitmap.getHeight() * scale)), true);
+        scaledIcons.put(iconBitmap, scaled);
+      }
+      return scaled;
+    }
+  }
+}
@@ -0,0 +1,152 @@
+package com.mediabrowser;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.facebook.react.bridge.ReactContext;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LazyChildrenLoader {
+  public static final long DEFAULT_TIMEOUT_MS = 5000;
+
+  private static final String EVENT_NAME = "onLoadChildrenRequested";
+
+  // Timed out requests whose answer is still welcome, the oldest are forgotten first
+  private static final int MAX_EXPIRED_REQUESTS = 64;
+
+  private static LazyChildrenLoader instance;
+
+  private final Handler handler = new Handler(Looper.getMainLooper());
+
+  private final AtomicInteger nextRequestId = new AtomicInteger();
+
+  // Guarded by this
+  private final Map<String, PendingRequest> pendingByParentId = new HashMap<>();
+  private final Map<String, PendingRequest> pendingByRequestId = new HashMap<>();
+  private final Map<String, String> expiredParentIds = new LinkedHashMap<String, String>() {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+      return size() > MAX_EXPIRED_REQUESTS;
+    }
+  };
+
+  private volatile boolean enabled;
+
+  private volatile long timeoutMs = DEFAULT_TIMEOUT_MS;
+
+  public interface ChildrenCallback {
+    // Called once the children are in the store, or the request timed out
+    void onChildrenLoaded();
+  }
+
+  private LazyChildrenLoader() { }
+
+  public static synchronized LazyChildrenLoader getInstance() {
+    if (instance == null) {
+      instance = new LazyChildrenLoader();
+    }
+    return instance;
+  }
+
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public void setTimeoutMs(long timeoutMs) {
+    this.timeoutMs = timeoutMs;
+  }
+
+  // Only when the request can reach JS: its listener is registered, or the runtime is up and JS is
+  // still registering listeners, then the dispatcher holds the request until it listens
+  public boolean canLoad() {
+    if (!enabled) {
+      return false;
+    }
+    MediaEventDispatcher dispatcher = MediaEventDispatcher.getInstance();
+    if (dispatcher.hasListener(EVENT_NAME)) {
+      return true;
+    }
+    ReactContext reactContext = MediaItemsStore.getInstance().getReactApplicationContext();
+    return reactContext != null && reactContext.hasActiveReactInstance() && !dispatcher.isListening();
+  }
+
+  public void loadChildren(String parentId, ChildrenCallback callback) {
+    final PendingRequest request;
+    synchronized (this) {
+      PendingRequest inFlight = pendingByParentId.get(parentId);
+      if (inFlight != null) {
+        // Someone already asked JS for this parent, just wait for the same answer
+        inFlight.callbacks.add(callback);
+        return;
+      }
+      request = new PendingRequest(String.valueOf(nextRequestId.incrementAndGet()), parentId);
+      request.callbacks.add(callback);
+      pendingByParentId.put(parentId, request);
+      pendingByRequestId.put(request.requestId, request);
+    }
+
+    handler.postDelayed(request.timeout, timeoutMs);
+
+    // Still sent after a timeout, a late answer is stored all the same
+    Bundle event = new Bundle();
+    event.putString("requestId", request.requestId);
+    event.putString("parentId", parentId);
+    MediaEventDispatcher.getInstance().emit(EVENT_NAME, event);
+  }
+
+  // Also knows requests that timed out: a late answer still fills the store, and the change
+  // notification it causes makes clients reload the parent
+  public synchronized String getParentId(String requestId) {
+    PendingRequest request = pendingByRequestId.get(requestId);
+    return request != null ? request.parentId : expiredParentIds.get(requestId);
+  }
+
+  public boolean complete(String requestId) {
+    return finish(requestId, false);
+  }
+
+  private boolean finish(String requestId, boolean expired) {
+    List<ChildrenCallback> callbacks;
+    synchronized (this) {
+      expiredParentIds.remove(requestId);
+      PendingRequest request = pendingByRequestId.remove(requestId);
+      if (request == null) {
+        return false;
+      }
+      if (expired) {
+        expiredParentIds.put(requestId, request.parentId);
+      }
+      pendingByParentId.remove(request.parentId);
+      handler.removeCallbacks(request.timeout);
+      callbacks = new ArrayList<>(request.callbacks);
+    }
+    for (ChildrenCallback callback : callbacks) {
+      callback.onChildrenLoaded();
+    }
+    return true;
+  }
+
+  private final class PendingRequest {
+    final String requestId;
+    final String parentId;
+    final List<ChildrenCallback> callbacks = new ArrayList<>();
+    final Runnable timeout = new Runnable() {
+      @Override
+      public void run() {
+        finish(requestId, true);
+      }
+    };
+
+    PendingRequest(String requestId, String parentId) {
+      this.requestId = requestId;
+      this.parentId = parentId;
+    }
+  }
+}
@@ -7,87 +7,229 @@ import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.Build;
 import android.os.ParcelFileDescriptor;
 import android.support.v4.media.MediaDescriptionCompat;
+import android.util.Base64;
+import android.util.Log;
+import android.util.LruCache;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import com.bumptech.glide.Glide;
-import com.bumptech.glide.load.resource.bitmap.CenterCrop;
-import com.facebook.common.references.CloseableReference;
-import com.facebook.datasource.DataSource;
-import com.facebook.datasource.DataSources;
-import com.facebook.drawee.backends.pipeline.Fresco;
-import com.facebook.imagepipeline.image.CloseableBitmap;
-import com.facebook.imagepipeline.image.CloseableImage;
-import com.facebook.imagepipeline.request.ImageRequest;
-import com.facebook.imagepipeline.request.ImageRequestBuilder;
-
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.HashMap;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class MediaArtworkContentProvider extends ContentProvider {
+  private static final String TAG = "MediaArtworkProvider";
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
   public static final String CONTENT_PROVIDER_AUTHORITY = "com.mediabrowser.provider";
-  private static final int DOWNLOAD_TIMEOUT_SECONDS = 30;
+  private static final int DOWNLOAD_TIMEOUT_SECONDS = ArtworkFetcher.DOWNLOAD_TIMEOUT_SECONDS;
+
+  // Embedded icons are cropped square to at most this size and byte count, so item parcels stay small
+  public static final int DEFAULT_ICON_MAX_SIZE_PX = 320;
+  public static final int DEFAULT_ICON_MAX_BYTES = 128 * 1024;
+
+  private static volatile int iconMaxSizePx = DEFAULT_ICON_MAX_SIZE_PX;
+  private static volatile int iconMaxBytes = DEFAULT_ICON_MAX_BYTES;
+  private static volatile boolean iconPreferRgb565 = true;
+
+  private static volatile boolean streamingEnabled = true;
+
+  // Decoded icons shared by every item using the same artwork, sized by bitmap bytes
+  private static final LruCache<String, Bitmap> iconCache =
+    new LruCache<String, Bitmap>((int) Math.min(Runtime.getRuntime().maxMemory() / 16, 16 * 1024 * 1024)) {
+      @Override
+      protected int sizeOf(String key, Bitmap bitmap) {
+        return bitmap.getByteCount();
+      }
+    };
+
+  // Decoded icon -> the uri it was loaded from, so persisted items can find embedded artwork again
+  private static final Map<Bitmap, Uri> iconSources = Collections.synchronizedMap(new WeakHashMap<>());
+
+  public static final int DEFAULT_URI_MAP_SIZE = 1024;
 
-  private static final Map<Uri, Uri> uriMap = new HashMap<>();
+  // Content uri -> remote uri for mapped uris, thread safe and evicting the least recently used
+  private static final LruCache<Uri, Uri> uriMap = new LruCache<>(DEFAULT_URI_MAP_SIZE);
+
+  // Encoded uris carry the remote uri in their path, so they survive process death and eviction
+  private static volatile boolean encodeUris = false;
+
+  private static final String ENCODED_PATH_SEGMENT = "e";
+
+  public static void setUriMapping(boolean encode, int maxMappedUris) {
+    encodeUris = encode;
+    uriMap.resize(maxMappedUris > 0 ? maxMappedUris : DEFAULT_URI_MAP_SIZE);
+  }
 
   public static Uri mapUri(Uri uri) {
-    String path = uri.getEncodedPath();
-    if (path != null) {
-      path = path.substring(1).replace('/', ':');
-    } else {
-      return Uri.EMPTY;
+    if (encodeUris) {
+      return encodeUri(uri);
     }
+    // The whole remote uri, host and query included, so different artwork never shares a content uri
     Uri contentUri = new Uri.Builder()
       .scheme(ContentResolver.SCHEME_CONTENT)
-      .authority("com.mediabrowser.provider")
-      .path(path)
+      .authority(CONTENT_PROVIDER_AUTHORITY)
+      .appendPath(ArtworkDiskCache.keyFor(uri))
       .build();
     uriMap.put(contentUri, uri);
     return contentUri;
   }
 
+  public static Uri encodeUri(Uri uri) {
+    String encoded = Base64.encodeToString(uri.toString().getBytes(UTF_8), Base64.URL_SAFE | Base64.NO_WRAP | Base64.NO_PADDING);
+    return new Uri.Builder()
+      .scheme(ContentResolver.SCHEME_CONTENT)
+      .authority(CONTENT_PROVIDER_AUTHORITY)
+      .appendPath(ENCODED_PATH_SEGMENT)
+      .appendPath(encoded)
+      .build();
+  }
+
+  @Nullable
+  public static Uri resolveRemoteUri(Uri contentUri) {
+    List<String> segments = contentUri.getPathSegments();
+    // Mapped paths never contain a '/', so two segments can only be an encoded uri
+    if (segments.size() == 2 && ENCODED_PATH_SEGMENT.equals(segments.get(0))) {
+      Uri remoteUri;
+      try {
+        remoteUri = Uri.parse(new String(Base64.decode(segments.get(1), Base64.URL_SAFE), UTF_8));
+      } catch (IllegalArgumentException e) {
+        return null;
+      }
+      // Anyone allowed to open the provider can build these, never let them reach the app's own files
+      String scheme = remoteUri.getScheme();
+      return "http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme) ? remoteUri : null;
+    }
+    return uriMap.get(contentUri);
+  }
+
+  // The uri an item's artwork can be loaded from after process death: the remote uri behind our
+  // content uris, or the uri an embedded icon was decoded from
+  @Nullable
+  public static Uri sourceIconUri(MediaDescriptionCompat description) {
+    Uri iconUri = description.getIconUri();
+    if (iconUri != null && CONTENT_PROVIDER_AUTHORITY.equals(iconUri.getAuthority())) {
+      Uri remoteUri = resolveRemoteUri(iconUri);
+      return remoteUri != null ? remoteUri : iconUri;
+    }
+    if (iconUri == null && description.getIconBitmap() != null) {
+      return iconSources.get(description.getIconBitmap());
+    }
+    return iconUri;
+  }
+
   @Override
   public boolean onCreate() {
     return true;
   }
 
+  @Override
+  public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+    if (level >= TRIM_MEMORY_MODERATE) {
+      iconCache.evictAll();
+    } else if (level >= TRIM_MEMORY_RUNNING_LOW || level == TRIM_MEMORY_UI_HIDDEN) {
+      iconCache.trimToSize(iconCache.maxSize() / 2);
+    }
+  }
+
+  @Override
+  public void onLowMemory() {
+    super.onLowMemory();
+    iconCache.evictAll();
+  }
+
+  public static LruCache<String, Bitmap> getIconCache() {
+    return iconCache;
+  }
+
   @Override
   public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
     if (getContext() == null) return null;
-    Uri remoteUri = uriMap.get(uri);
-    if (remoteUri == null) throw new FileNotFoundException(uri.getPath());
-
-    File file = new File(getContext().getCacheDir(), uri.getPath());
-    if (!file.exists()) {
-      // Use Glide to download the album art.
-      File cacheFile = null;
-      try {
-        cacheFile = Glide.with(getContext())
-          .asFile()
-          .load(remoteUri)
-          .submit()
-          .get(DOWNLOAD_TIMEOUT_SECONDS, TimeUnit.SECONDS);
-      } catch (Exception e) {
-        e.printStackTrace();
-      }
+    ArtworkDiskCache cache = ArtworkDiskCache.getInstance(getContext());
+    Uri remoteUri = resolveRemoteUri(uri);
+    if (remoteUri == null) {
+      // A mapped uri the map has forgotten, e.g. after process death: its path is still the cache key
+      List<String> segments = uri.getPathSegments();
+      File cached = segments.size() == 1 ? cache.get(segments.get(0)) : null;
+      if (cached == null) throw new FileNotFoundException(uri.getPath());
+      return ParcelFileDescriptor.open(cached, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
 
-      // Rename the file Glide created to match our own scheme.
-      if (cacheFile != null) {
-        cacheFile.renameTo(file);
-        file = cacheFile;
+    File file = cache.get(ArtworkDiskCache.keyFor(remoteUri));
+    if (file == null && streamingEnabled) {
+      ParcelFileDescriptor pipe = openStreaming(getContext(), remoteUri);
+      if (pipe != null) {
+        return pipe;
       }
     }
+    if (file == null) {
+      file = fetchArtwork(getContext(), remoteUri);
+    }
+    if (file == null) throw new FileNotFoundException(uri.getPath());
     return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
   }
 
+  public static void setStreamingEnabled(boolean enabled) {
+    streamingEnabled = enabled;
+  }
+
+  // Hands the reader a pipe that fills while the download is still writing to the disk cache, so no
+  // binder thread waits for the network
+  @Nullable
+  private static ParcelFileDescriptor openStreaming(Context context, Uri remoteUri) {
+    ParcelFileDescriptor[] pipe;
+    try {
+      pipe = ParcelFileDescriptor.createReliablePipe();
+    } catch (IOException e) {
+      Log.w(TAG, "Could not create a pipe for " + remoteUri, e);
+      return null;
+    }
+    // A download already in flight for another reader fills the pipe once it is done
+    ArtworkFetcher.getInstance(context).fetchStreaming(remoteUri, pipe[1]);
+    return pipe[0];
+  }
+
+  public static void setDiskCacheMaxBytes(Context context, long maxBytes) {
+    ArtworkDiskCache.getInstance(context).setMaxBytes(maxBytes);
+  }
+
+  @Nullable
+  public static File fetchArtwork(Context context, Uri remoteUri) {
+    return fetchArtwork(context, remoteUri, TimeUnit.SECONDS.toMillis(DOWNLOAD_TIMEOUT_SECONDS));
+  }
+
+  // Returns the cached copy of the artwork, waiting for a shared download when needed
+  @Nullable
+  public static File fetchArtwork(Context context, Uri remoteUri, long timeoutMs) {
+    try {
+      return ArtworkFetcher.getInstance(context).fetch(remoteUri).get(timeoutMs, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      // The download keeps going for whoever asks next
+      Log.w(TAG, "Timed out waiting for " + remoteUri);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      Log.w(TAG, "Could not download " + remoteUri, e.getCause());
+    }
+    return null;
+  }
+
   @Override
   public Uri insert(Uri uri, ContentValues values) {
     return null;
@@ -115,45 +257,89 @@ public class MediaArtworkContentProvider extends ContentProvider {
     return null;
   }
 
-  public static void setIconBitmapFromFresco(
-    Context context,
-    MediaDescriptionCompat.Builder descriptionBuilder,
-    Uri uri) {
-    // 1. Build an ImageRequest
-    ImageRequest imageRequest = ImageRequestBuilder
-      .newBuilderWithSource(uri)
-      .build();
+  public static void setIconLimits(int maxSizePx, int maxBytes, boolean preferRgb565) {
+    iconMaxSizePx = maxSizePx > 0 ? maxSizePx : DEFAULT_ICON_MAX_SIZE_PX;
+    iconMaxBytes = maxBytes > 0 ? maxBytes : DEFAULT_ICON_MAX_BYTES;
+    iconPreferRgb565 = preferRgb565;
+  }
 
-    // 2. Fetch decoded image using Fresco
-    DataSource<CloseableReference<CloseableImage>> dataSource =
-      Fresco.getImagePipeline().fetchDecodedImage(imageRequest, context);
+  // Blocks for at most deadlineMs, call it off the bridge thread
+  @Nullable
+  public static Bitmap loadIconBitmap(Context context, Uri uri, long deadlineMs) {
+    int maxSizePx = iconMaxSizePx;
+    int maxBytes = iconMaxBytes;
+    boolean preferRgb565 = iconPreferRgb565;
 
-    try {
-      // 3. Block until the final result is ready
-      CloseableReference<CloseableImage> resultRef = DataSources.waitForFinalResult(dataSource);
-
-      if (resultRef != null && resultRef.get() instanceof CloseableBitmap) {
-        // 4. Extract Bitmap from Fresco's CloseableBitmap and scale
-//        Bitmap bitmap = ((CloseableBitmap) resultRef.get()).getUnderlyingBitmap();
-//        Bitmap cropped = centerCrop(bitmap, desiredSize);
-//        Bitmap scaled = Bitmap.createScaledBitmap(cropped, desiredSize, desiredSize, true);
-
-        Bitmap bmp = Glide.with(context)
-          .asBitmap()
-          .load(uri)
-          .transform(new CenterCrop())  // or FitCenter, CircleCrop, etc.
-          .submit()
-          .get(DOWNLOAD_TIMEOUT_SECONDS, TimeUnit.SECONDS);
-
-        // 5. Set the icon bitmap on your MediaDescriptionCompat
-        descriptionBuilder.setIconBitmap(bmp);
-      }
-    } catch (Throwable e) {
-      e.printStackTrace();
-    } finally {
-      // 7. Always close the data source
-      dataSource.close();
+    String cacheKey = iconCacheKey(uri, maxSizePx, maxBytes, preferRgb565);
+    Bitmap cached = iconCache.get(cacheKey);
+    if (cached != null) {
+      return cached;
     }
+
+    // 1. Get the encoded image through the same disk cache openFile serves from
+    File file = fetchArtwork(context, uri, deadlineMs);
+    if (file == null) {
+      return null;
+    }
+
+    // 2. Read the bounds only, then decode downsampled close to the icon size
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    BitmapFactory.decodeFile(file.getPath(), options);
+    if (options.outWidth <= 0 || options.outHeight <= 0) {
+      return null;
+    }
+    options.inJustDecodeBounds = false;
+    options.inSampleSize = sampleSize(Math.min(options.outWidth, options.outHeight), maxSizePx);
+    options.inPreferredConfig = preferRgb565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    Bitmap bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+    if (bitmap == null) {
+      return null;
+    }
+
+    // 3. Center crop and scale the decoded bitmap
+    Bitmap icon = createIcon(bitmap, maxSizePx, maxBytes);
+    iconCache.put(cacheKey, icon);
+    iconSources.put(icon, uri);
+    return icon;
+  }
+
+  // The already decoded icon for uri, without loading anything
+  @Nullable
+  public static Bitmap peekIconBitmap(Uri uri) {
+    return iconCache.get(iconCacheKey(uri, iconMaxSizePx, iconMaxBytes, iconPreferRgb565));
+  }
+
+  private static String iconCacheKey(Uri uri, int maxSizePx, int maxBytes, boolean preferRgb565) {
+    return uri + "#" + maxSizePx + ":" + maxBytes + ":" + (preferRgb565 ? "565" : "8888");
+  }
+
+  private static int sampleSize(int shortSide, int targetSize) {
+    int sampleSize = 1;
+    while (shortSide / (sampleSize * 2) >= targetSize) {
+      sampleSize *= 2;
+    }
+    return sampleSize;
+  }
+
+  private static Bitmap createIcon(Bitmap source, int maxSizePx, int maxBytes) {
+    Bitmap icon = centerCrop(source, maxSizePx);
+    int bytesPerPixel = icon.getConfig() == Bitmap.Config.RGB_565 ? 2 : 4;
+    // Shrink further when the square at maxSizePx would blow the byte budget
+    int targetSize = Math.min(maxSizePx, (int) Math.sqrt((double) maxBytes / bytesPerPixel));
+    if (icon.getWidth() > targetSize) {
+      icon = Bitmap.createScaledBitmap(icon, targetSize, targetSize, true);
+    }
+    if (isHardware(icon)) {
+      // Hardware bitmaps can't be parceled
+      Bitmap.Config config = icon.getConfig() == Bitmap.Config.RGB_565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+      icon = icon.copy(config, false);
+    }
+    return icon;
+  }
+
+  private static boolean isHardware(Bitmap bitmap) {
+    return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && bitmap.getConfig() == Bitmap.Config.HARDWARE;
   }
 
   private static Bitmap centerCrop(Bitmap src, int targetSize) {
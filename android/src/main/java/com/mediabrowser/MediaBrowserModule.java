@@ -6,11 +6,9 @@ import static androidx.media.utils.MediaConstants.DESCRIPTION_EXTRAS_KEY_COMPLET
 import static androidx.media.utils.MediaConstants.DESCRIPTION_EXTRAS_KEY_COMPLETION_STATUS;
 import static androidx.media.utils.MediaConstants.METADATA_KEY_IS_EXPLICIT;
 
-import static com.mediabrowser.MediaArtworkContentProvider.setIconBitmapFromFresco;
-import static com.mediabrowser.MediaBrowserUtils.convertReadableMapToJson;
-
 import android.app.Activity;
 import android.content.ContentResolver;
+import android.graphics.Bitmap;
 import android.media.MediaDescription;
 import android.net.Uri;
 import android.os.Bundle;
@@ -19,13 +17,15 @@ import android.os.Looper;
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaDescriptionCompat;
 import android.util.Log;
+import android.util.LruCache;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.car.app.connection.CarConnection;
-import androidx.lifecycle.LifecycleOwner;
 import androidx.lifecycle.Observer;
 import androidx.media.utils.MediaConstants;
 
+import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
@@ -33,6 +33,8 @@ import com.facebook.react.bridge.ReactMethod;
 import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.UiThreadUtil;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.bridge.WritableNativeArray;
 import com.facebook.react.bridge.WritableNativeMap;
 import com.facebook.react.module.annotations.ReactModule;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
@@ -42,6 +44,12 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -60,10 +68,14 @@ public class MediaBrowserModule extends ReactContextBaseJavaModule {
 
   private ReactApplicationContext reactContext;
 
+  // Items of one app tend to repeat the same info keys, so sharing them saves memory
+  private volatile boolean internExtrasKeys = true;
+
   public MediaBrowserModule(ReactApplicationContext reactContext) {
     super(reactContext);
     this.reactContext = reactContext;
     MediaItemsStore.getInstance().setReactApplicationContext(reactContext);
+    MediaItemsStore.getInstance().enablePersistence(reactContext);
 
     initializeCarConnection();
   }
@@ -94,10 +106,17 @@ public class MediaBrowserModule extends ReactContextBaseJavaModule {
       public void run() {
         if (isReactNativeReady && carConnection == null) {
           carConnection = new CarConnection(reactContext);
-          carConnection.getType().observe((LifecycleOwner) reactContext.getCurrentActivity(), new Observer<Integer>() {
-            @Override
-            public void onChanged(Integer connectionType) {
-              sendCarConnectionToJS(connectionType);
+          // Not tied to an activity, there is none when the car starts the app in the background
+          carConnection.getType().observeForever(carConnectionObserver);
+        }
+      }
+    });
+  }
+
+  private final Observer<Integer> carConnectionObserver = new Observer<Integer>() {
+    @Override
+    public void onChanged(Integer connectionType) {
+      sendCarConnectionToJS(connectionType);
 
 //        switch (connectionType) {
 //          case CarConnection.CONNECTION_TYPE_NOT_CONNECTED:
@@ -109,19 +128,192 @@ public class MediaBrowserModule extends ReactContextBaseJavaModule {
 //            // Handle projection connection state
 //            break;
 //        }
-            }
-          });
-        }
+    }
+  };
+
+  @Override
+  public void invalidate() {
+    UiThreadUtil.runOnUiThread(() -> {
+      if (carConnection != null) {
+        carConnection.getType().removeObserver(carConnectionObserver);
+        carConnection = null;
       }
     });
+    MediaItemsStore store = MediaItemsStore.getInstance();
+    // A reload may already have attached the next context
+    if (store.getReactApplicationContext() == reactContext) {
+      store.setReactApplicationContext(null);
+      MediaEventDispatcher.getInstance().reset();
+    }
+    super.invalidate();
+  }
+
+  // The JS wrapper reports its listeners, so events nobody listens to are never built or sent
+  @ReactMethod
+  public void registerEventListener(String eventName, Promise promise) {
+    try {
+      MediaEventDispatcher.getInstance().registerListener(eventName);
+      promise.resolve(null);
+    } catch (Exception e) {
+      promise.reject("ERROR", e);
+    }
+  }
+
+  @ReactMethod
+  public void unregisterEventListener(String eventName, Promise promise) {
+    try {
+      MediaEventDispatcher.getInstance().unregisterListener(eventName);
+      promise.resolve(null);
+    } catch (Exception e) {
+      promise.reject("ERROR", e);
+    }
+  }
+
+  @ReactMethod
+  public void setPendingEventCapacity(double capacity, Promise promise) {
+    try {
+      MediaEventDispatcher.getInstance().setCapacity((int) capacity);
+      promise.resolve(null);
+    } catch (Exception e) {
+      promise.reject("ERROR", e);
+    }
+  }
+
+  @ReactMethod
+  public void getEventQueueStats(Promise promise) {
+    try {
+      promise.resolve(MediaEventDispatcher.getInstance().getStats());
+    } catch (Exception e) {
+      promise.reject("ERROR", e);
+    }
+  }
+
+  @ReactMethod
+  public void setQueue(ReadableArray mediaIds, double currentIndex, String title, Promise promise) {
+    try {
+      List<String> ids = new ArrayList<>(mediaIds.size());
+      for (int i = 0; i < mediaIds.size(); i++) {
+        ids.add(mediaIds.getString(i));
+      }
+      MediaQueueManager.getInstance().setQueue(reactContext, ids, (int) currentIndex, title);
+      promise.resolve(null);
+    } catch (Exception e) {
+      promise.reject("ERROR", e);
+    }
+  }
+
+  @ReactMethod
+  public void setQueueWindowSize(double windowSize, Promise promise) {
+    try {
+      MediaQueueManager.getInstance().setWindowSize((int) windowSize);
+      promise.resolve(null);
+    } catch (Exception e) {
+      promise.reject("ERROR", e);
+    }
+  }
+
+  @ReactMethod
+  public void setPlaybackState(double state, double positionMs, double speed, double bufferedPositionMs, String errorMessage, Promise promise) {
+    try {
+      PlaybackStatePublisher.getInstance().update(reactContext, (int) state, (long) positionMs, (float) speed, (long) bufferedPositionMs, errorMessage);
+      promise.resolve(null);
+    } catch (Exception e) {
+      promise.reject("ERROR", e);
+    }
+  }
+
+  @ReactMethod
+  public void setPlaybackPositionDriftThreshold(double driftThresholdMs, Promise promise) {
+    try {
+      PlaybackStatePublisher.getInstance().setDriftThresholdMs((long) driftThresholdMs);
+      promise.resolve(null);
+    } catch (Exception e) {
+      promise.reject("ERROR", e);
+    }
+  }
+
+  @ReactMethod
+  public void getPlaybackStateStats(Promise promise) {
+    try {
+      WritableMap stats = Arguments.createMap();
+      stats.putDouble("published", PlaybackStatePublisher.getInstance().getPublishedCount());
+      stats.putDouble("skipped", PlaybackStatePublisher.getInstance().getSkippedCount());
+      promise.resolve(stats);
+    } catch (Exception e) {
+      promise.reject("ERROR", e);
+    }
+  }
+
+  @ReactMethod
+  public void setParcelBudget(double budgetBytes, Promise promise) {
+    try {
+      ParcelSizeBudget.getInstance().setBudgetBytes((int) budgetBytes);
+      promise.resolve(null);
+    } catch (Exception e) {
+      promise.reject("ERROR", e);
+    }
+  }
+
+  @ReactMethod
+  public void getParcelBudgetStats(Promise promise) {
+    try {
+      promise.resolve(ParcelSizeBudget.getInstance().getStats());
+    } catch (Exception e) {
+      promise.reject("ERROR", e);
+    }
+  }
+
+  @ReactMethod
+  public void setInternExtrasKeys(boolean internExtrasKeys, Promise promise) {
+    try {
+      this.internExtrasKeys = internExtrasKeys;
+      promise.resolve(null);
+    } catch (Exception e) {
+      promise.reject("ERROR", e);
+    }
   }
 
   @ReactMethod
   public void setMediaItems(ReadableMap itemsMap, Promise promise) {
     try {
-      Map<String, List<MediaBrowserCompat.MediaItem>> hierarchy = buildMediaItemsHierarchy(itemsMap);
+      ArtworkLoader.Batch artwork = ArtworkLoader.getInstance().newBatch(reactContext);
+      Map<String, List<MediaBrowserCompat.MediaItem>> hierarchy = buildMediaItemsHierarchy(itemsMap, artwork);
       MediaItemsStore.getInstance().setRootId(itemsMap.getString("id"));
       MediaItemsStore.getInstance().setMediaItemsHierarchy(hierarchy);
+      artwork.start();
+      ArtworkPrefetcher.getInstance().onMediaItemsSet(reactContext, itemsMap.getString("id"));
+      promise.resolve(null);
+    } catch (Exception e) {
+      promise.reject("ERROR", e);
+    }
+  }
+
+  @ReactMethod
+  public void setMediaItemsFromJson(String json, Promise promise) {
+    setMediaItemsFromReader(new StringReader(json), promise);
+  }
+
+  @ReactMethod
+  public void setMediaItemsFromFile(String path, Promise promise) {
+    if (path.startsWith("file://")) {
+      path = Uri.parse(path).getPath();
+    }
+    try {
+      setMediaItemsFromReader(new BufferedReader(new InputStreamReader(new FileInputStream(path), "UTF-8")), promise);
+    } catch (IOException e) {
+      promise.reject("ERROR", e);
+    }
+  }
+
+  private void setMediaItemsFromReader(Reader reader, Promise promise) {
+    try {
+      ArtworkLoader.Batch artwork = ArtworkLoader.getInstance().newBatch(reactContext);
+      MediaItemsJsonParser parser = MediaItemsJsonParser.parse(reader, internExtrasKeys,
+        (description, mediaId, icon) -> applyIcon(description, mediaId, icon, artwork));
+      MediaItemsStore.getInstance().setRootId(parser.getRootId());
+      MediaItemsStore.getInstance().setMediaItemsHierarchy(parser.getHierarchy());
+      artwork.start();
+      ArtworkPrefetcher.getInstance().onMediaItemsSet(reactContext, parser.getRootId());
       promise.resolve(null);
     } catch (Exception e) {
       promise.reject("ERROR", e);
@@ -131,8 +323,10 @@ public class MediaBrowserModule extends ReactContextBaseJavaModule {
   @ReactMethod
   public void pushMediaItem(String parentId, ReadableMap itemMap, Promise promise) {
     try {
-      MediaBrowserCompat.MediaItem newItem = createMediaItem(itemMap);
+      ArtworkLoader.Batch artwork = ArtworkLoader.getInstance().newBatch(reactContext);
+      MediaBrowserCompat.MediaItem newItem = createMediaItem(itemMap, artwork);
       MediaItemsStore.getInstance().pushMediaItem(parentId, newItem);
+      artwork.start();
       promise.resolve(null);
     } catch (Exception e) {
       promise.reject("ERROR", e);
@@ -164,6 +358,7 @@ public class MediaBrowserModule extends ReactContextBaseJavaModule {
             .setSubtitle(oldDescription.getSubtitle())
             .setDescription(oldDescription.getDescription())
             .setIconUri(oldDescription.getIconUri())
+            .setIconBitmap(oldDescription.getIconBitmap())
             .setExtras(oldDescription.getExtras());
 
           if (item.hasKey("title")) {
@@ -181,10 +376,8 @@ public class MediaBrowserModule extends ReactContextBaseJavaModule {
 
           ReadableMap itemExtras = item.hasKey("extras") ? item.getMap("extras") : null;
           if (itemExtras != null) {
-            Bundle extras = oldDescription.getExtras();
-            if (extras == null) {
-              extras = new Bundle();
-            }
+            // A copy, the stored item's extras may be getting parceled to a client right now
+            Bundle extras = oldDescription.getExtras() != null ? new Bundle(oldDescription.getExtras()) : new Bundle();
             if (itemExtras.hasKey(DESCRIPTION_EXTRAS_KEY_COMPLETION_STATUS)) {
               extras.putInt(DESCRIPTION_EXTRAS_KEY_COMPLETION_STATUS, itemExtras.getInt(DESCRIPTION_EXTRAS_KEY_COMPLETION_STATUS));
             }
@@ -223,7 +416,10 @@ public class MediaBrowserModule extends ReactContextBaseJavaModule {
     }
 
     try {
-      handleItemsArray(parentId, updatedItemsArray, replace);
+      ArtworkLoader.Batch artwork = ArtworkLoader.getInstance().newBatch(reactContext);
+      handleItemsArray(parentId, updatedItemsArray, replace, artwork);
+      artwork.start();
+      ArtworkPrefetcher.getInstance().onMediaItemsSet(reactContext, parentId);
       promise.resolve("Success");
     } catch (Exception e) {
       e.printStackTrace();
@@ -231,30 +427,195 @@ public class MediaBrowserModule extends ReactContextBaseJavaModule {
     }
   }
 
-  private void handleItemsMap(String parentId, ReadableMap itemMap, boolean replace) throws Exception {
-    MediaBrowserCompat.MediaItem mediaItem = createMediaItem(itemMap);
+  @ReactMethod
+  public void setNotificationWindow(double windowMs, Promise promise) {
+    try {
+      MediaItemsStore.getInstance().setNotificationWindowMs((long) windowMs);
+      promise.resolve(null);
+    } catch (Exception e) {
+      promise.reject("ERROR", e);
+    }
+  }
+
+  @ReactMethod
+  public void flushNotifications(Promise promise) {
+    try {
+      MediaItemsStore.getInstance().flushNotifications();
+      promise.resolve(null);
+    } catch (Exception e) {
+      promise.reject("ERROR", e);
+    }
+  }
+
+  @ReactMethod
+  public void setDefaultPageSize(double pageSize, Promise promise) {
+    try {
+      MediaItemsStore.getInstance().setDefaultPageSize((int) pageSize);
+      promise.resolve(null);
+    } catch (Exception e) {
+      promise.reject("ERROR", e);
+    }
+  }
+
+  @ReactMethod
+  public void setLazyLoading(boolean enabled, double timeoutMs, Promise promise) {
+    try {
+      LazyChildrenLoader.getInstance().setEnabled(enabled);
+      if (timeoutMs > 0) {
+        LazyChildrenLoader.getInstance().setTimeoutMs((long) timeoutMs);
+      }
+      promise.resolve(null);
+    } catch (Exception e) {
+      promise.reject("ERROR", e);
+    }
+  }
+
+  @ReactMethod
+  public void resolveChildren(String requestId, ReadableArray itemsArray, Promise promise) {
+    String parentId = LazyChildrenLoader.getInstance().getParentId(requestId);
+    if (parentId == null) {
+      Log.e(TAG, "resolveChildren called for unknown request " + requestId);
+      promise.reject("ERR_UNKNOWN_REQUEST", "No pending children request with id " + requestId);
+      return;
+    }
+
+    try {
+      // The store doubles as the cache of resolved nodes
+      ArtworkLoader.Batch artwork = ArtworkLoader.getInstance().newBatch(reactContext);
+      handleItemsArray(parentId, itemsArray != null ? itemsArray : new WritableNativeArray(), true, artwork);
+      artwork.start();
+      promise.resolve(null);
+    } catch (Exception e) {
+      e.printStackTrace();
+      promise.reject("ERR_RESOLVE_CHILDREN", e.getMessage(), e);
+    } finally {
+      LazyChildrenLoader.getInstance().complete(requestId);
+    }
+  }
+
+  @ReactMethod
+  public void setArtworkDeadline(double deadlineMs, Promise promise) {
+    try {
+      ArtworkLoader.getInstance().setDeadlineMs((long) deadlineMs);
+      promise.resolve(null);
+    } catch (Exception e) {
+      promise.reject("ERROR", e);
+    }
+  }
+
+  @ReactMethod
+  public void setIconLimits(double maxSizePx, double maxBytes, boolean preferRgb565, Promise promise) {
+    try {
+      MediaArtworkContentProvider.setIconLimits((int) maxSizePx, (int) maxBytes, preferRgb565);
+      promise.resolve(null);
+    } catch (Exception e) {
+      promise.reject("ERROR", e);
+    }
+  }
+
+  @ReactMethod
+  public void getIconMemoryUsage(Promise promise) {
+    try {
+      promise.resolve((double) MediaItemsStore.getInstance().getIconBitmapBytes());
+    } catch (Exception e) {
+      promise.reject("ERROR", e);
+    }
+  }
+
+  @ReactMethod
+  public void getArtworkCacheStats(Promise promise) {
+    try {
+      LruCache<String, Bitmap> iconCache = MediaArtworkContentProvider.getIconCache();
+      WritableMap stats = Arguments.createMap();
+      stats.putInt("hits", iconCache.hitCount());
+      stats.putInt("misses", iconCache.missCount());
+      stats.putInt("evictions", iconCache.evictionCount());
+      stats.putInt("size", iconCache.size());
+      stats.putInt("maxSize", iconCache.maxSize());
+      promise.resolve(stats);
+    } catch (Exception e) {
+      promise.reject("ERROR", e);
+    }
+  }
+
+  @ReactMethod
+  public void setArtworkDiskCacheSize(double maxBytes, Promise promise) {
+    try {
+      MediaArtworkContentProvider.setDiskCacheMaxBytes(reactContext, (long) maxBytes);
+      promise.resolve(null);
+    } catch (Exception e) {
+      promise.reject("ERROR", e);
+    }
+  }
+
+  @ReactMethod
+  public void setArtworkStreaming(boolean enabled, Promise promise) {
+    try {
+      MediaArtworkContentProvider.setStreamingEnabled(enabled);
+      promise.resolve(null);
+    } catch (Exception e) {
+      promise.reject("ERROR", e);
+    }
+  }
+
+  @ReactMethod
+  public void setArtworkUriMapping(boolean encode, double maxMappedUris, Promise promise) {
+    try {
+      MediaArtworkContentProvider.setUriMapping(encode, (int) maxMappedUris);
+      promise.resolve(null);
+    } catch (Exception e) {
+      promise.reject("ERROR", e);
+    }
+  }
+
+  @ReactMethod
+  public void prefetchArtwork(ReadableArray parentIds, double depth, Promise promise) {
+    try {
+      List<String> ids = new ArrayList<>();
+      for (int i = 0; i < parentIds.size(); i++) {
+        ids.add(parentIds.getString(i));
+      }
+      ArtworkPrefetcher.getInstance().prefetch(reactContext, ids, Math.max(1, (int) depth));
+      promise.resolve(null);
+    } catch (Exception e) {
+      promise.reject("ERROR", e);
+    }
+  }
+
+  @ReactMethod
+  public void setAutoPrefetchArtwork(boolean enabled, double depth, Promise promise) {
+    try {
+      ArtworkPrefetcher.getInstance().setAutoPrefetch(enabled, (int) depth);
+      promise.resolve(null);
+    } catch (Exception e) {
+      promise.reject("ERROR", e);
+    }
+  }
+
+  private void handleItemsMap(String parentId, ReadableMap itemMap, boolean replace, ArtworkLoader.Batch artwork) throws Exception {
+    MediaBrowserCompat.MediaItem mediaItem = createMediaItem(itemMap, artwork);
     List<MediaBrowserCompat.MediaItem> updatedItems = new ArrayList<>();
     updatedItems.add(mediaItem);
 
     if (itemMap.hasKey("children")) {
       ReadableArray childrenArray = itemMap.getArray("children");
-      handleItemsArray(mediaItem.getDescription().getMediaId(), childrenArray, replace);
+      handleItemsArray(mediaItem.getDescription().getMediaId(), childrenArray, replace, artwork);
     }
 
     MediaItemsStore.getInstance().updateMediaItems(parentId, updatedItems, replace);
   }
 
-  private void handleItemsArray(String parentId, ReadableArray itemsArray, boolean replace) {
+  private void handleItemsArray(String parentId, ReadableArray itemsArray, boolean replace, ArtworkLoader.Batch artwork) {
     List<MediaBrowserCompat.MediaItem> updatedItems = new ArrayList<>();
     for (int i = 0; i < itemsArray.size(); i++) {
       try {
         ReadableMap itemMap = itemsArray.getMap(i);
-        MediaBrowserCompat.MediaItem mediaItem = createMediaItem(itemMap);
+        MediaBrowserCompat.MediaItem mediaItem = createMediaItem(itemMap, artwork);
 
         if (itemMap.hasKey("children")) {
           ReadableArray childrenArray = itemMap.getArray("children");
           if (childrenArray != null) {
-            handleItemsArray(mediaItem.getDescription().getMediaId(), childrenArray, replace);
+            handleItemsArray(mediaItem.getDescription().getMediaId(), childrenArray, replace, artwork);
           }
         }
 
@@ -268,14 +629,10 @@ public class MediaBrowserModule extends ReactContextBaseJavaModule {
   }
 
   private void sendCarConnectionToJS(Integer carState) {
-    if (isReactNativeReady) {
-      getReactApplicationContext()
-        .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-        .emit("onCarConnectionChanged", carState);
-    }
+    MediaEventDispatcher.getInstance().emit("onCarConnectionChanged", carState);
   }
 
-  private Map<String, List<MediaBrowserCompat.MediaItem>> buildMediaItemsHierarchy(ReadableMap itemsMap) throws Exception {
+  Map<String, List<MediaBrowserCompat.MediaItem>> buildMediaItemsHierarchy(ReadableMap itemsMap, ArtworkLoader.Batch artwork) throws Exception {
     Map<String, List<MediaBrowserCompat.MediaItem>> hierarchy = new HashMap<>();
 
     String rootId = itemsMap.getString("id");
@@ -283,14 +640,14 @@ public class MediaBrowserModule extends ReactContextBaseJavaModule {
 
     for (int i = 0; i < rootItems.size(); i++) {
       ReadableMap item = rootItems.getMap(i);
-      addMediaItemToHierarchy(item, hierarchy, rootId);
+      addMediaItemToHierarchy(item, hierarchy, rootId, artwork);
     }
 
     return hierarchy;
   }
 
-  private void addMediaItemToHierarchy(ReadableMap itemMap, Map<String, List<MediaBrowserCompat.MediaItem>> hierarchy, String parentId) throws Exception {
-    MediaBrowserCompat.MediaItem mediaItem = createMediaItem(itemMap);
+  private void addMediaItemToHierarchy(ReadableMap itemMap, Map<String, List<MediaBrowserCompat.MediaItem>> hierarchy, String parentId, ArtworkLoader.Batch artwork) throws Exception {
+    MediaBrowserCompat.MediaItem mediaItem = createMediaItem(itemMap, artwork);
 
     if (!hierarchy.containsKey(parentId)) {
       hierarchy.put(parentId, new ArrayList<>());
@@ -301,12 +658,12 @@ public class MediaBrowserModule extends ReactContextBaseJavaModule {
       ReadableArray children = itemMap.getArray("children");
       for (int i = 0; i < children.size(); i++) {
         ReadableMap childItem = children.getMap(i);
-        addMediaItemToHierarchy(childItem, hierarchy, itemMap.getString("id"));
+        addMediaItemToHierarchy(childItem, hierarchy, itemMap.getString("id"), artwork);
       }
     }
   }
 
-  private MediaBrowserCompat.MediaItem createMediaItem(ReadableMap itemMap) throws Exception {
+  private MediaBrowserCompat.MediaItem createMediaItem(ReadableMap itemMap, ArtworkLoader.Batch artwork) throws Exception {
     String mediaId = itemMap.getString("id");
     MediaDescriptionCompat.Builder description = new MediaDescriptionCompat.Builder()
       .setMediaId(mediaId);
@@ -318,22 +675,7 @@ public class MediaBrowserModule extends ReactContextBaseJavaModule {
       description.setSubtitle(itemMap.getString("subTitle"));
     }
 
-    if (itemMap.hasKey("icon")) {
-      Uri iconUri = Uri.parse(itemMap.getString("icon"));
-      if ("res".equals(iconUri.getScheme())) {
-        int iconResId = getReactApplicationContext().getResources().getIdentifier(iconUri.getHost() + ":" + iconUri.getPath(), "drawable", getReactApplicationContext().getPackageName());
-        description.setIconUri(Uri.parse("android.resource://" + getReactApplicationContext().getPackageName() + "/" + iconResId));
-      } else {
-//        Uri contentUri = asAlbumArtContentURI(iconUri);
-//        description.setIconUri(iconUri);
-        String host = iconUri.getHost();
-        if (host != null && host.equals("127.0.0.1")) {
-          setIconBitmapFromFresco(getReactApplicationContext(), description, iconUri);
-        } else {
-          description.setIconUri(iconUri);
-        }
-      }
-    }
+    applyIcon(description, mediaId, itemMap.hasKey("icon") ? itemMap.getString("icon") : null, artwork);
 
     Bundle extras = new Bundle();
     if (itemMap.hasKey("browsableStyle")) {
@@ -361,7 +703,7 @@ public class MediaBrowserModule extends ReactContextBaseJavaModule {
       itemExtras = itemMap.getMap("extras");
       if (itemExtras != null && itemExtras.hasKey("info")) {
         ReadableMap infoMap = itemExtras.getMap("info");
-        extras.putString("info", convertReadableMapToJson(infoMap).toString());
+        extras.putBundle("info", MediaBrowserUtils.toBundle(infoMap, internExtrasKeys));
       }
     } else {
       itemExtras = new WritableNativeMap();
@@ -393,6 +735,41 @@ public class MediaBrowserModule extends ReactContextBaseJavaModule {
     return new MediaBrowserCompat.MediaItem(description.build(), flags);
   }
 
+  void applyIcon(MediaDescriptionCompat.Builder description, String mediaId, @Nullable String icon, ArtworkLoader.Batch artwork) {
+    if (icon == null) {
+      ArtworkLoader.getInstance().forget(mediaId);
+      return;
+    }
+    Uri iconUri = Uri.parse(icon);
+    if ("res".equals(iconUri.getScheme())) {
+      ArtworkLoader.getInstance().forget(mediaId);
+      int iconResId = getReactApplicationContext().getResources().getIdentifier(iconUri.getHost() + ":" + iconUri.getPath(), "drawable", getReactApplicationContext().getPackageName());
+      description.setIconUri(Uri.parse("android.resource://" + getReactApplicationContext().getPackageName() + "/" + iconResId));
+    } else {
+//      Uri contentUri = asAlbumArtContentURI(iconUri);
+//      description.setIconUri(iconUri);
+      String host = iconUri.getHost();
+      if (host != null && host.equals("127.0.0.1")) {
+        Bitmap iconBitmap = MediaArtworkContentProvider.peekIconBitmap(iconUri);
+        if (iconBitmap != null) {
+          // Shared instance, so re-sent items still diff as unchanged
+          ArtworkLoader.getInstance().forget(mediaId);
+          description.setIconBitmap(iconBitmap);
+        } else {
+          // Decoded in the background and patched into the store when ready
+          artwork.add(mediaId, iconUri);
+        }
+      } else {
+        ArtworkLoader.getInstance().forget(mediaId);
+        String scheme = iconUri.getScheme();
+        // Remote artwork goes through our provider, so clients read it from the disk cache prefetching fills
+        description.setIconUri("http".equals(scheme) || "https".equals(scheme)
+          ? MediaArtworkContentProvider.mapUri(iconUri)
+          : iconUri);
+      }
+    }
+  }
+
   public static Uri asAlbumArtContentURI(Uri webUri) {
     return new Uri.Builder()
       .scheme(ContentResolver.SCHEME_CONTENT)
@@ -401,7 +778,7 @@ public class MediaBrowserModule extends ReactContextBaseJavaModule {
       .build();
   }
 
-  private int mapContentStyle(String contentStyle) {
+  static int mapContentStyle(String contentStyle) {
     switch (contentStyle) {
       case "CONTENT_STYLE_GRID_ITEM":
         return MediaConstants.DESCRIPTION_EXTRAS_VALUE_CONTENT_STYLE_GRID_ITEM;
@@ -1,9 +1,11 @@
 package com.mediabrowser;
 
 import android.content.Context;
+import android.content.Intent;
 import android.content.res.Configuration;
 import android.media.MediaMetadata;
 import androidx.media.MediaBrowserServiceCompat;
+import androidx.media.MediaSessionManager.RemoteUserInfo;
 import android.media.session.MediaSessionManager;
 import android.media.session.PlaybackState;
 import android.net.Uri;
@@ -16,25 +18,41 @@ import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
-
-import com.facebook.react.bridge.Arguments;
-import com.facebook.react.bridge.ReactContext;
-import com.facebook.react.bridge.WritableMap;
-import com.facebook.react.modules.core.DeviceEventManagerModule;
+import androidx.media.utils.MediaConstants;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MediaBrowserService extends MediaBrowserServiceCompat implements MediaItemsStore.MediaItemsUpdateListener {
   private static final String MEDIA_ROOT_ID = "ROOT";
 
   private static final String TAG = "MediaBrowserService";
 
+  private static final int SEARCH_RESULTS_LIMIT = 50;
+
+  // Enough for every browser connected at once, stale sessions fall out
+  private static final int MAX_CLIENT_PROFILES = 16;
+
+  private final Map<RemoteUserInfo, BrowserClientProfile> clientProfiles =
+    new LinkedHashMap<RemoteUserInfo, BrowserClientProfile>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<RemoteUserInfo, BrowserClientProfile> eldest) {
+        return size() > MAX_CLIENT_PROFILES;
+      }
+    };
+
+  // Searches run off the main thread, one at a time
+  private final ExecutorService searchExecutor = Executors.newSingleThreadExecutor();
+
   MediaSessionCompat mSession;
 
   @Override
@@ -43,15 +61,16 @@ public class MediaBrowserService extends MediaBrowserServiceCompat implements Me
     Log.d(TAG, "onCreate called");
 
     MediaItemsStore.getInstance().setListener(this);
+    // Serve the last known tree if the head unit connects before JS has set one
+    MediaItemsStore.getInstance().enablePersistence(this);
 
     mSession = MediaSessionSingleton.getInstance(this);
 
 //    mSession = new MediaSessionCompat(this, "MediaBrowserService");
     setSessionToken(mSession.getSessionToken());
 
-//    PlaybackStateCompat.Builder stateBuilder = new PlaybackStateCompat.Builder()
-//      .setActions(PlaybackStateCompat.ACTION_PLAY | PlaybackStateCompat.ACTION_PAUSE | PlaybackStateCompat.ACTION_SKIP_TO_NEXT | PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS);
-//    mSession.setPlaybackState(stateBuilder.build());
+    // Advertise the supported actions until JS reports playback through PlaybackStatePublisher
+    PlaybackStatePublisher.getInstance().publishInitialState(mSession);
 
     mSession.setCallback(new MediaSessionCompat.Callback() {
       @Override
@@ -77,24 +96,67 @@ public class MediaBrowserService extends MediaBrowserServiceCompat implements Me
       @Override
       public void onPlayFromMediaId(String mediaId, Bundle extras) {
         super.onPlayFromMediaId(mediaId, extras);
+        // Update the MediaSession's metadata from the store before JS gets involved
+        MediaQueueManager.getInstance().onMediaItemSelected(MediaBrowserService.this, mediaId);
         sendMediaItemToJS(mediaId);
+      }
 
-        // Fetch the MediaItem from the MediaItemsStore.
-//        MediaBrowserCompat.MediaItem mediaItem = MediaItemsStore.getInstance().getMediaItemById(mediaId);
-//        if (mediaItem != null) {
-          // Update the MediaSession's metadata.
-//          mSession.setMetadata(new MediaMetadataCompat.Builder()
-//            .putString(MediaMetadata.METADATA_KEY_MEDIA_ID, mediaItem.getDescription().getMediaId())
-//            .putString(MediaMetadata.METADATA_KEY_TITLE, mediaItem.getDescription().getTitle().toString())
-//            .putString(MediaMetadata.METADATA_KEY_ARTIST, mediaItem.getDescription().getSubtitle().toString())
-//            // Add more metadata fields as needed.
-//            .build());
-//        }
+      @Override
+      public void onPlay() {
+        sendPlaybackControlToJS("play", null);
+      }
+
+      @Override
+      public void onPause() {
+        sendPlaybackControlToJS("pause", null);
+      }
+
+      @Override
+      public void onStop() {
+        sendPlaybackControlToJS("stop", null);
+      }
+
+      @Override
+      public void onSeekTo(long pos) {
+        sendPlaybackControlToJS("seekTo", pos);
+      }
+
+      @Override
+      public void onSkipToQueueItem(long id) {
+        if (!MediaQueueManager.getInstance().skipToQueueItem(id)) {
+          super.onSkipToQueueItem(id);
+        }
+      }
+
+      @Override
+      public void onSkipToNext() {
+        if (!MediaQueueManager.getInstance().skipToNext()) {
+          // No native queue, or at its end: JS decides what comes next
+          sendPlaybackControlToJS("skipToNext", null);
+        }
+      }
+
+      @Override
+      public void onSkipToPrevious() {
+        if (!MediaQueueManager.getInstance().skipToPrevious()) {
+          sendPlaybackControlToJS("skipToPrevious", null);
+        }
       }
 
       @Override
       public void onPlayFromSearch(String query, Bundle extras) {
         super.onPlayFromSearch(query, extras);
+        // Resolved natively, JS only hears about the item to play
+        // An empty query is a plain "play music"
+        MediaBrowserCompat.MediaItem mediaItem = query == null || query.trim().isEmpty()
+          ? defaultPlayable()
+          : MediaItemsStore.getInstance().findPlayable(query);
+        if (mediaItem != null) {
+          MediaQueueManager.getInstance().onMediaItemSelected(MediaBrowserService.this, mediaItem.getMediaId());
+          sendMediaItemToJS(mediaItem.getMediaId());
+        } else {
+          Log.d(TAG, "Nothing playable found for " + query);
+        }
       }
 
       @Override
@@ -143,94 +205,168 @@ public class MediaBrowserService extends MediaBrowserServiceCompat implements Me
   public BrowserRoot onGetRoot(@NonNull String clientPackageName,
                                int clientUid,
                                @Nullable Bundle rootHints) {
-    Log.d(TAG, "onGetRoot called");
+    Log.d(TAG, "onGetRoot called by " + clientPackageName);
     String rootId = MediaItemsStore.getInstance().getRootId();
-    Log.d(TAG, "MyRootID is: " + rootId);
+    if (rootId == null) {
+      return null;
+    }
+    BrowserClientProfile profile = BrowserClientProfile.fromRootHints(clientPackageName, getPackageName(), rootHints);
+    synchronized (clientProfiles) {
+      clientProfiles.put(getCurrentBrowserInfo(), profile);
+    }
+    Bundle rootExtras = new Bundle();
+    rootExtras.putBoolean(MediaConstants.BROWSER_SERVICE_EXTRAS_KEY_SEARCH_SUPPORTED, true);
+    return new BrowserRoot(rootId, rootExtras);
+  }
+
+  @Override
+  public void onSearch(@NonNull final String query,
+                       @Nullable final Bundle extras,
+                       @NonNull final Result<List<MediaBrowserCompat.MediaItem>> result) {
+    final BrowserClientProfile profile = currentClientProfile();
+    result.detach();
+    searchExecutor.execute(() -> result.sendResult(grantArtwork(profile,
+      profile.shape(MediaItemsStore.getInstance().search(query, SEARCH_RESULTS_LIMIT), false))));
+  }
 
-    // Print the media hierarchy
-    List<MediaBrowserCompat.MediaItem> mediaHierarchy = MediaItemsStore.getInstance().getMediaItemsByParentId(rootId);
-    Log.d(TAG, "Media hierarchy: " + mediaHierarchy);
-    return rootId != null ? new BrowserRoot(rootId, null) : null;
+  @Override
+  public void onDestroy() {
+    searchExecutor.shutdown();
+    super.onDestroy();
   }
 
   @Override
   public void onLoadChildren(@NonNull final String parentMediaId,
                              @NonNull final Result<List<MediaBrowserCompat.MediaItem>> result) {
+    loadChildren(parentMediaId, result, null);
+  }
+
+  @Override
+  public void onLoadChildren(@NonNull final String parentMediaId,
+                             @NonNull final Result<List<MediaBrowserCompat.MediaItem>> result,
+                             @NonNull final Bundle options) {
+    loadChildren(parentMediaId, result, options);
+  }
+
+  private void loadChildren(@NonNull String parentMediaId,
+                            @NonNull Result<List<MediaBrowserCompat.MediaItem>> result,
+                            @Nullable Bundle options) {
     Log.d(TAG, "onLoadChildren called");
-    List<MediaBrowserCompat.MediaItem> mediaItems = MediaItemsStore.getInstance().getMediaItemsByParentId(parentMediaId);
+    MediaItemsStore store = MediaItemsStore.getInstance();
+    // Only known while this call lasts, so look it up before detaching
+    final BrowserClientProfile profile = currentClientProfile();
+    final boolean root = parentMediaId.equals(store.getRootId());
+
+    int page = 0;
+    int pageSize = store.getDefaultPageSize();
+    final boolean paged = options != null && options.containsKey(MediaBrowserCompat.EXTRA_PAGE)
+      && options.containsKey(MediaBrowserCompat.EXTRA_PAGE_SIZE);
+    if (paged) {
+      page = options.getInt(MediaBrowserCompat.EXTRA_PAGE);
+      pageSize = options.getInt(MediaBrowserCompat.EXTRA_PAGE_SIZE);
+      if (page < 0 || pageSize < 1) {
+        result.sendResult(null);
+        return;
+      }
+    }
+
+    List<MediaBrowserCompat.MediaItem> mediaItems = store.getMediaItemsPage(parentMediaId, page, pageSize);
+
+    sendBrowsableItemToJS(parentMediaId);
+
+    if (mediaItems == null && LazyChildrenLoader.getInstance().canLoad()) {
+      // Not resolved yet, ask JS and answer once it does
+      result.detach();
+      final int requestedPage = page;
+      final int requestedPageSize = pageSize;
+      LazyChildrenLoader.getInstance().loadChildren(parentMediaId, () -> {
+        List<MediaBrowserCompat.MediaItem> loadedItems = MediaItemsStore.getInstance()
+          .getMediaItemsPage(parentMediaId, requestedPage, requestedPageSize);
+        result.sendResult(loadedItems != null ? prepareChildren(profile, parentMediaId, loadedItems, root, paged) : new ArrayList<>());
+      });
+      return;
+    }
 
     if (mediaItems == null) {
       mediaItems = new ArrayList<>();
     }
 
-    sendBrowsableItemToJS(parentMediaId);
-
-    result.sendResult(mediaItems);
+    result.sendResult(prepareChildren(profile, parentMediaId, mediaItems, root, paged));
   }
 
-  private void sendMediaItemToJS(String mediaId) {
-    ReactContext reactContext = MediaItemsStore.getInstance().getReactApplicationContext();
-    if (reactContext != null) {
-      MediaBrowserCompat.MediaItem mediaItem = MediaItemsStore.getInstance().getMediaItemById(mediaId);
-      if (mediaItem != null) {
-        WritableMap mediaItemMap = Arguments.createMap();
-        mediaItemMap.putString("id", mediaItem.getDescription().getMediaId());
-
-        CharSequence title = mediaItem.getDescription().getTitle();
-        if (title != null) {
-          mediaItemMap.putString("title", title.toString());
-        }
+  // A client evicted from the profiles, or connected before the service restarted, gets its profile
+  // rebuilt from the hints it connected with, so it is still shaped and granted its artwork
+  private BrowserClientProfile currentClientProfile() {
+    RemoteUserInfo browser = getCurrentBrowserInfo();
+    synchronized (clientProfiles) {
+      BrowserClientProfile profile = clientProfiles.get(browser);
+      if (profile == null) {
+        profile = BrowserClientProfile.fromRootHints(browser.getPackageName(), getPackageName(), getBrowserRootHints());
+        clientProfiles.put(browser, profile);
+      }
+      return profile;
+    }
+  }
 
-        CharSequence subtitle = mediaItem.getDescription().getSubtitle();
-        if (subtitle != null) {
-          mediaItemMap.putString("subTitle", subtitle.toString());
-        }
+  private List<MediaBrowserCompat.MediaItem> prepareChildren(BrowserClientProfile profile,
+                                                            String parentMediaId,
+                                                            List<MediaBrowserCompat.MediaItem> items,
+                                                            boolean root,
+                                                            boolean paged) {
+    // Sizes are cached per stored item, so the budget is checked before shaping copies anything
+    return grantArtwork(profile, profile.shape(ParcelSizeBudget.getInstance().apply(parentMediaId, items, paged), root));
+  }
 
-        Uri iconUri = mediaItem.getDescription().getIconUri();
-        if (iconUri != null) {
-          mediaItemMap.putString("icon", iconUri.toString());
-        }
+  // Artwork served by our provider is only readable by the clients it is granted to
+  private List<MediaBrowserCompat.MediaItem> grantArtwork(BrowserClientProfile profile,
+                                                         List<MediaBrowserCompat.MediaItem> items) {
+    for (MediaBrowserCompat.MediaItem item : items) {
+      Uri iconUri = item.getDescription().getIconUri();
+      if (iconUri != null && MediaArtworkContentProvider.CONTENT_PROVIDER_AUTHORITY.equals(iconUri.getAuthority())
+        && profile.needsArtworkGrant(iconUri)) {
+        grantUriPermission(profile.getPackageName(), iconUri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+      }
+    }
+    return items;
+  }
 
-        // Adding all extras
-        Bundle extras = mediaItem.getDescription().getExtras();
-        if (extras != null) {
-          WritableMap extrasMap = Arguments.createMap();
-          for (String key : extras.keySet()) {
-            Object value = extras.get(key);
-            if (value instanceof String) {
-              extrasMap.putString(key, (String) value);
-            } else if (value instanceof Integer) {
-              extrasMap.putInt(key, (Integer) value);
-            } else if (value instanceof Boolean) {
-              extrasMap.putBoolean(key, (Boolean) value);
-            }
-          }
-          mediaItemMap.putMap("extras", extrasMap);
-        }
+  private void sendMediaItemToJS(String mediaId) {
+    // The item as it is now, the event is only built if JS listens for it
+    MediaBrowserCompat.MediaItem mediaItem = MediaItemsStore.getInstance().getMediaItemById(mediaId);
+    if (mediaItem == null) {
+      return;
+    }
+    MediaEventDispatcher.getInstance().emit("onMediaItemSelected", () -> MediaBrowserUtils.createMediaItemEvent(mediaItem));
+  }
 
-        // Add the playable or browsable flag
-        int flags = mediaItem.getFlags();
-        if ((flags & MediaBrowserCompat.MediaItem.FLAG_PLAYABLE) != 0) {
-          mediaItemMap.putString("playableOrBrowsable", "PLAYABLE");
-        } else if ((flags & MediaBrowserCompat.MediaItem.FLAG_BROWSABLE) != 0) {
-          mediaItemMap.putString("playableOrBrowsable", "BROWSABLE");
-        }
+  // What was playing, or else the first playable item of the tree
+  @Nullable
+  private static MediaBrowserCompat.MediaItem defaultPlayable() {
+    MediaItemsStore store = MediaItemsStore.getInstance();
+    String currentMediaId = MediaQueueManager.getInstance().getCurrentMediaId();
+    MediaBrowserCompat.MediaItem current = currentMediaId != null ? store.getMediaItemById(currentMediaId) : null;
+    return current != null ? current : store.findFirstPlayable();
+  }
 
-        reactContext.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-          .emit("onMediaItemSelected", mediaItemMap);
+  // Transport controls the session advertises, JS owns the player
+  private void sendPlaybackControlToJS(String action, @Nullable Long positionMs) {
+    MediaEventDispatcher.getInstance().emit("onPlaybackControl", () -> {
+      Bundle event = new Bundle();
+      event.putString("action", action);
+      if (positionMs != null) {
+        event.putDouble("position", positionMs);
       }
-    }
+      return event;
+    });
   }
 
   private void sendBrowsableItemToJS(String parentMediaId) {
-    ReactContext reactContext = MediaItemsStore.getInstance().getReactApplicationContext();
-    if (reactContext != null) {
-        WritableMap event = Arguments.createMap();
-        event.putString("id", parentMediaId);
-        event.putString("playableOrBrowsable", "BROWSABLE");
-
-        reactContext.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-                .emit("onBrowsableItemSelected", event);
-    }
+    // Repeated browses before JS catches up collapse into the latest one
+    MediaEventDispatcher.getInstance().emit("onBrowsableItemSelected", () -> {
+      Bundle event = new Bundle();
+      event.putString("id", parentMediaId);
+      event.putString("playableOrBrowsable", "BROWSABLE");
+      return event;
+    });
   }
 }
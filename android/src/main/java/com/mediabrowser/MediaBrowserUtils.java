@@ -1,13 +1,29 @@
 package com.mediabrowser;
 
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+
+import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.ReadableMapKeySetIterator;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
 public class MediaBrowserUtils {
   public static JSONObject convertReadableMapToJson(ReadableMap readableMap) throws JSONException {
     JSONObject object = new JSONObject();
@@ -63,4 +79,361 @@ public class MediaBrowserUtils {
     }
     return array;
   }
+
+  // Marks a Bundle that stands for an array a typed Bundle array can't hold: values under "0", "1", ...
+  static final String ARRAY_LENGTH_KEY = "\u0000length";
+
+  // Typed copy of a ReadableMap, without the JSON tree and string the convert*ToJson path allocates.
+  // Numbers are doubles, as in JSON. Arrays of a single kind become double[], boolean[], String[] or
+  // Bundle[]; mixed arrays, nested arrays and arrays with nulls become array Bundles, so every array
+  // comes back to JS as the array it was.
+  // Interning keys saves memory when thousands of items repeat the same ones.
+  public static Bundle toBundle(ReadableMap readableMap, boolean internKeys) {
+    Bundle bundle = new Bundle();
+    ReadableMapKeySetIterator iterator = readableMap.keySetIterator();
+    while (iterator.hasNextKey()) {
+      String key = iterator.nextKey();
+      String bundleKey = internKeys ? key.intern() : key;
+      switch (readableMap.getType(key)) {
+        case Null:
+          bundle.putString(bundleKey, null);
+          break;
+        case Boolean:
+          bundle.putBoolean(bundleKey, readableMap.getBoolean(key));
+          break;
+        case Number:
+          bundle.putDouble(bundleKey, readableMap.getDouble(key));
+          break;
+        case String:
+          bundle.putString(bundleKey, readableMap.getString(key));
+          break;
+        case Map:
+          bundle.putBundle(bundleKey, toBundle(readableMap.getMap(key), internKeys));
+          break;
+        case Array:
+          putList(bundle, bundleKey, toList(readableMap.getArray(key), internKeys));
+          break;
+      }
+    }
+    return bundle;
+  }
+
+  private static List<Object> toList(ReadableArray readableArray, boolean internKeys) {
+    List<Object> values = new ArrayList<>(readableArray.size());
+    for (int i = 0; i < readableArray.size(); i++) {
+      switch (readableArray.getType(i)) {
+        case Null:
+          values.add(null);
+          break;
+        case Boolean:
+          values.add(readableArray.getBoolean(i));
+          break;
+        case Number:
+          values.add(readableArray.getDouble(i));
+          break;
+        case String:
+          values.add(readableArray.getString(i));
+          break;
+        case Map:
+          values.add(toBundle(readableArray.getMap(i), internKeys));
+          break;
+        case Array:
+          values.add(toList(readableArray.getArray(i), internKeys));
+          break;
+      }
+    }
+    return values;
+  }
+
+  // values hold nulls, Booleans, Doubles, Strings, Bundles and, for nested arrays, Lists of the same
+  static void putList(Bundle bundle, String key, List<Object> values) {
+    Class<?> kind = null;
+    for (Object value : values) {
+      if (value == null || value instanceof List || (kind != null && kind != value.getClass())) {
+        kind = List.class;
+        break;
+      }
+      kind = value.getClass();
+    }
+    if (kind == null || kind == String.class) {
+      bundle.putStringArray(key, values.toArray(new String[0]));
+    } else if (kind == Double.class) {
+      double[] array = new double[values.size()];
+      for (int i = 0; i < array.length; i++) {
+        array[i] = (Double) values.get(i);
+      }
+      bundle.putDoubleArray(key, array);
+    } else if (kind == Boolean.class) {
+      boolean[] array = new boolean[values.size()];
+      for (int i = 0; i < array.length; i++) {
+        array[i] = (Boolean) values.get(i);
+      }
+      bundle.putBooleanArray(key, array);
+    } else if (kind == Bundle.class) {
+      bundle.putParcelableArray(key, values.toArray(new Bundle[0]));
+    } else {
+      bundle.putBundle(key, toArrayBundle(values));
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Bundle toArrayBundle(List<Object> values) {
+    Bundle array = new Bundle();
+    array.putInt(ARRAY_LENGTH_KEY, values.size());
+    for (int i = 0; i < values.size(); i++) {
+      String key = String.valueOf(i);
+      Object value = values.get(i);
+      if (value == null) {
+        array.putString(key, null);
+      } else if (value instanceof Boolean) {
+        array.putBoolean(key, (Boolean) value);
+      } else if (value instanceof Double) {
+        array.putDouble(key, (Double) value);
+      } else if (value instanceof String) {
+        array.putString(key, (String) value);
+      } else if (value instanceof Bundle) {
+        array.putBundle(key, (Bundle) value);
+      } else {
+        putList(array, key, (List<Object>) value);
+      }
+    }
+    return array;
+  }
+
+  // The reverse of toBundle, for sending Bundles to JS. Values of other types are left out.
+  public static WritableMap toWritableMap(Bundle bundle) {
+    WritableMap map = Arguments.createMap();
+    for (String key : bundle.keySet()) {
+      Object value = bundle.get(key);
+      if (value == null) {
+        map.putNull(key);
+      } else if (value instanceof String) {
+        map.putString(key, (String) value);
+      } else if (value instanceof Boolean) {
+        map.putBoolean(key, (Boolean) value);
+      } else if (value instanceof Integer) {
+        map.putInt(key, (Integer) value);
+      } else if (value instanceof Number) {
+        map.putDouble(key, ((Number) value).doubleValue());
+      } else if (value instanceof Bundle && ((Bundle) value).containsKey(ARRAY_LENGTH_KEY)) {
+        map.putArray(key, toWritableArray((Bundle) value));
+      } else if (value instanceof Bundle) {
+        map.putMap(key, toWritableMap((Bundle) value));
+      } else if (value.getClass().isArray()) {
+        map.putArray(key, toWritableArray(value));
+      }
+    }
+    return map;
+  }
+
+  private static WritableArray toWritableArray(Object array) {
+    WritableArray writableArray = Arguments.createArray();
+    for (int i = 0; i < Array.getLength(array); i++) {
+      pushValue(writableArray, Array.get(array, i));
+    }
+    return writableArray;
+  }
+
+  private static WritableArray toWritableArray(Bundle arrayBundle) {
+    WritableArray writableArray = Arguments.createArray();
+    int length = arrayBundle.getInt(ARRAY_LENGTH_KEY);
+    for (int i = 0; i < length; i++) {
+      pushValue(writableArray, arrayBundle.get(String.valueOf(i)));
+    }
+    return writableArray;
+  }
+
+  private static void pushValue(WritableArray writableArray, Object value) {
+    if (value == null) {
+      writableArray.pushNull();
+    } else if (value instanceof String) {
+      writableArray.pushString((String) value);
+    } else if (value instanceof Boolean) {
+      writableArray.pushBoolean((Boolean) value);
+    } else if (value instanceof Integer) {
+      writableArray.pushInt((Integer) value);
+    } else if (value instanceof Number) {
+      writableArray.pushDouble(((Number) value).doubleValue());
+    } else if (value instanceof Bundle && ((Bundle) value).containsKey(ARRAY_LENGTH_KEY)) {
+      writableArray.pushArray(toWritableArray((Bundle) value));
+    } else if (value instanceof Bundle) {
+      writableArray.pushMap(toWritableMap((Bundle) value));
+    } else if (value.getClass().isArray()) {
+      writableArray.pushArray(toWritableArray(value));
+    }
+  }
+
+  public static Bundle createMediaItemEvent(MediaBrowserCompat.MediaItem mediaItem) {
+    // A Bundle rather than a WritableMap, so it can wait in the queue while there is no bridge
+    Bundle mediaItemMap = new Bundle();
+    mediaItemMap.putString("id", mediaItem.getDescription().getMediaId());
+
+    CharSequence title = mediaItem.getDescription().getTitle();
+    if (title != null) {
+      mediaItemMap.putString("title", title.toString());
+    }
+
+    CharSequence subtitle = mediaItem.getDescription().getSubtitle();
+    if (subtitle != null) {
+      mediaItemMap.putString("subTitle", subtitle.toString());
+    }
+
+    Uri iconUri = mediaItem.getDescription().getIconUri();
+    if (iconUri != null) {
+      mediaItemMap.putString("icon", iconUri.toString());
+    }
+
+    // Adding all extras, nested ones are converted on delivery
+    Bundle extras = mediaItem.getDescription().getExtras();
+    if (extras != null) {
+      mediaItemMap.putBundle("extras", new Bundle(extras));
+    }
+
+    // Add the playable or browsable flag
+    int flags = mediaItem.getFlags();
+    if ((flags & MediaBrowserCompat.MediaItem.FLAG_PLAYABLE) != 0) {
+      mediaItemMap.putString("playableOrBrowsable", "PLAYABLE");
+    } else if ((flags & MediaBrowserCompat.MediaItem.FLAG_BROWSABLE) != 0) {
+      mediaItemMap.putString("playableOrBrowsable", "BROWSABLE");
+    }
+
+    return mediaItemMap;
+  }
+
+  public static int parcelSize(MediaBrowserCompat.MediaItem item) {
+    Parcel parcel = Parcel.obtain();
+    try {
+      item.writeToParcel(parcel, 0);
+      return parcel.dataSize();
+    } finally {
+      parcel.recycle();
+    }
+  }
+
+  public static MediaBrowserCompat.MediaItem withIconBitmap(MediaBrowserCompat.MediaItem item, Bitmap iconBitmap) {
+    MediaDescriptionCompat description = item.getDescription();
+    MediaDescriptionCompat newDescription = new MediaDescriptionCompat.Builder()
+      .setMediaId(description.getMediaId())
+      .setTitle(description.getTitle())
+      .setSubtitle(description.getSubtitle())
+      .setDescription(description.getDescription())
+      .setIconUri(description.getIconUri())
+      .setMediaUri(description.getMediaUri())
+      .setExtras(description.getExtras())
+      .setIconBitmap(iconBitmap)
+      .build();
+    return new MediaBrowserCompat.MediaItem(newDescription, item.getFlags());
+  }
+
+  public static MediaBrowserCompat.MediaItem withoutExtra(MediaBrowserCompat.MediaItem item, String key) {
+    MediaDescriptionCompat description = item.getDescription();
+    Bundle extras = new Bundle(description.getExtras());
+    extras.remove(key);
+    MediaDescriptionCompat newDescription = new MediaDescriptionCompat.Builder()
+      .setMediaId(description.getMediaId())
+      .setTitle(description.getTitle())
+      .setSubtitle(description.getSubtitle())
+      .setDescription(description.getDescription())
+      .setIconUri(description.getIconUri())
+      .setMediaUri(description.getMediaUri())
+      .setExtras(extras)
+      .setIconBitmap(description.getIconBitmap())
+      .build();
+    return new MediaBrowserCompat.MediaItem(newDescription, item.getFlags());
+  }
+
+  public static int contentHash(MediaBrowserCompat.MediaItem item) {
+    MediaDescriptionCompat description = item.getDescription();
+    int hash = item.getFlags();
+    hash = 31 * hash + Objects.hashCode(description.getMediaId());
+    hash = 31 * hash + Objects.hashCode(toString(description.getTitle()));
+    hash = 31 * hash + Objects.hashCode(toString(description.getSubtitle()));
+    hash = 31 * hash + Objects.hashCode(toString(description.getDescription()));
+    hash = 31 * hash + Objects.hashCode(description.getIconUri());
+    hash = 31 * hash + Objects.hashCode(description.getMediaUri());
+    // Shared artwork is the same instance, so identity is enough
+    hash = 31 * hash + System.identityHashCode(description.getIconBitmap());
+    hash = 31 * hash + bundleHash(description.getExtras());
+    return hash;
+  }
+
+  public static boolean sameContent(MediaBrowserCompat.MediaItem a, MediaBrowserCompat.MediaItem b) {
+    MediaDescriptionCompat first = a.getDescription();
+    MediaDescriptionCompat second = b.getDescription();
+    return a.getFlags() == b.getFlags()
+      && Objects.equals(first.getMediaId(), second.getMediaId())
+      && Objects.equals(toString(first.getTitle()), toString(second.getTitle()))
+      && Objects.equals(toString(first.getSubtitle()), toString(second.getSubtitle()))
+      && Objects.equals(toString(first.getDescription()), toString(second.getDescription()))
+      && Objects.equals(first.getIconUri(), second.getIconUri())
+      && Objects.equals(first.getMediaUri(), second.getMediaUri())
+      && first.getIconBitmap() == second.getIconBitmap()
+      && bundlesEqual(first.getExtras(), second.getExtras());
+  }
+
+  private static String toString(CharSequence value) {
+    return value != null ? value.toString() : null;
+  }
+
+  private static int bundleHash(Bundle bundle) {
+    if (bundle == null) {
+      return 0;
+    }
+    // Order independent, Bundle doesn't promise an iteration order
+    int hash = 0;
+    for (String key : bundle.keySet()) {
+      hash += key.hashCode() ^ valueHash(bundle.get(key));
+    }
+    return hash;
+  }
+
+  // Bundles, also inside arrays, by content
+  private static int valueHash(Object value) {
+    if (value instanceof Bundle) {
+      return bundleHash((Bundle) value);
+    }
+    if (value instanceof Object[]) {
+      int hash = 1;
+      for (Object element : (Object[]) value) {
+        hash = 31 * hash + valueHash(element);
+      }
+      return hash;
+    }
+    return Arrays.deepHashCode(new Object[]{value});
+  }
+
+  private static boolean valuesEqual(Object first, Object second) {
+    if (first instanceof Bundle && second instanceof Bundle) {
+      return bundlesEqual((Bundle) first, (Bundle) second);
+    }
+    if (first instanceof Object[] && second instanceof Object[]) {
+      Object[] firstArray = (Object[]) first;
+      Object[] secondArray = (Object[]) second;
+      if (firstArray.length != secondArray.length) {
+        return false;
+      }
+      for (int i = 0; i < firstArray.length; i++) {
+        if (!valuesEqual(firstArray[i], secondArray[i])) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return Objects.deepEquals(first, second);
+  }
+
+  private static boolean bundlesEqual(Bundle a, Bundle b) {
+    if (a == null || b == null) {
+      return a == b;
+    }
+    if (a.size() != b.size() || !a.keySet().equals(b.keySet())) {
+      return false;
+    }
+    for (String key : a.keySet()) {
+      if (!valuesEqual(a.get(key), b.get(key))) {
+        return false;
+      }
+    }
+    return true;
+  }
 }
@@ -0,0 +1,228 @@
+package com.mediabrowser;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+// Sends native events to JS from a bounded queue, drained on the main thread. Events are only
+// built once someone listens for them: a queued event waits until a listener for it registers (JS
+// registers its listeners one by one on start) or until it ages out. Once JS listens for anything,
+// new events nobody listens to are dropped unbuilt.
+public class MediaEventDispatcher {
+  public static final int DEFAULT_CAPACITY = 64;
+
+  // How long a queued event waits for its listener to register
+  public static final long MAX_PENDING_AGE_MS = 60 * 1000;
+
+  public enum Policy {
+    // Every event is delivered, the oldest queued events go first when the queue is full
+    DROP_OLDEST,
+    // Only the newest queued event of the kind is delivered
+    MERGE_LATEST
+  }
+
+  public interface PayloadFactory {
+    // A Bundle or a plain value, null to skip the event
+    Object create();
+  }
+
+  private static MediaEventDispatcher instance;
+
+  private final Handler handler = new Handler(Looper.getMainLooper());
+
+  // Guarded by this, like everything below. Oldest first.
+  private final ArrayDeque<PendingEvent> queue = new ArrayDeque<>();
+
+  private final Map<String, Policy> policies = new HashMap<>();
+
+  private final Map<String, Integer> listenerCounts = new HashMap<>();
+
+  private int capacity = DEFAULT_CAPACITY;
+
+  // Set once JS registers a listener, until then nothing is known to be unobserved
+  private boolean listening;
+
+  private boolean drainScheduled;
+
+  private long delivered;
+  private long merged;
+  private long dropped;
+  private long unobserved;
+
+  private final Runnable drainRunnable = this::drain;
+
+  private MediaEventDispatcher() {
+    // A fast scroll through tabs only needs to report where the user ended up
+    policies.put("onBrowsableItemSelected", Policy.MERGE_LATEST);
+    policies.put("onCarConnectionChanged", Policy.MERGE_LATEST);
+  }
+
+  public static synchronized MediaEventDispatcher getInstance() {
+    if (instance == null) {
+      instance = new MediaEventDispatcher();
+    }
+    return instance;
+  }
+
+  public synchronized void setPolicy(String eventName, Policy policy) {
+    policies.put(eventName, policy);
+  }
+
+  public synchronized void setCapacity(int capacity) {
+    this.capacity = capacity > 0 ? capacity : DEFAULT_CAPACITY;
+    while (queue.size() > this.capacity) {
+      queue.pollFirst();
+      dropped++;
+    }
+  }
+
+  public void registerListener(String eventName) {
+    synchronized (this) {
+      Integer count = listenerCounts.get(eventName);
+      listenerCounts.put(eventName, count == null ? 1 : count + 1);
+      listening = true;
+    }
+    scheduleDrain();
+  }
+
+  public synchronized void unregisterListener(String eventName) {
+    Integer count = listenerCounts.get(eventName);
+    if (count == null || count <= 1) {
+      listenerCounts.remove(eventName);
+    } else {
+      listenerCounts.put(eventName, count - 1);
+    }
+  }
+
+  public synchronized boolean hasListener(String eventName) {
+    return listenerCounts.containsKey(eventName);
+  }
+
+  // Whether JS registered any listener since it started
+  public synchronized boolean isListening() {
+    return listening;
+  }
+
+  // The JS runtime went away, whatever registers next starts from scratch
+  public synchronized void reset() {
+    listenerCounts.clear();
+    listening = false;
+  }
+
+  public void emit(String eventName, Object payload) {
+    emit(eventName, () -> payload);
+  }
+
+  public void emit(String eventName, PayloadFactory payloadFactory) {
+    synchronized (this) {
+      if (listening && !listenerCounts.containsKey(eventName)) {
+        unobserved++;
+        return;
+      }
+      if (policies.get(eventName) == Policy.MERGE_LATEST) {
+        Iterator<PendingEvent> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+          if (iterator.next().eventName.equals(eventName)) {
+            iterator.remove();
+            merged++;
+            break;
+          }
+        }
+      }
+      if (queue.size() >= capacity) {
+        queue.pollFirst();
+        dropped++;
+      }
+      queue.addLast(new PendingEvent(eventName, payloadFactory, SystemClock.elapsedRealtime()));
+    }
+    scheduleDrain();
+  }
+
+  public synchronized WritableMap getStats() {
+    WritableMap stats = Arguments.createMap();
+    stats.putInt("queued", queue.size());
+    stats.putInt("capacity", capacity);
+    stats.putDouble("delivered", delivered);
+    stats.putDouble("merged", merged);
+    stats.putDouble("dropped", dropped);
+    stats.putDouble("unobserved", unobserved);
+    return stats;
+  }
+
+  private void scheduleDrain() {
+    synchronized (this) {
+      if (drainScheduled) {
+        return;
+      }
+      drainScheduled = true;
+    }
+    handler.post(drainRunnable);
+  }
+
+  private void drain() {
+    ReactContext reactContext = MediaItemsStore.getInstance().getReactApplicationContext();
+    List<PendingEvent> ready = new ArrayList<>();
+    synchronized (this) {
+      drainScheduled = false;
+      if (!listening || reactContext == null || !reactContext.hasActiveReactInstance()) {
+        // Keep everything until JS is there to listen
+        return;
+      }
+      long expiredBefore = SystemClock.elapsedRealtime() - MAX_PENDING_AGE_MS;
+      Iterator<PendingEvent> iterator = queue.iterator();
+      while (iterator.hasNext()) {
+        PendingEvent event = iterator.next();
+        if (listenerCounts.containsKey(event.eventName)) {
+          iterator.remove();
+          ready.add(event);
+        } else if (event.queuedAt < expiredBefore) {
+          iterator.remove();
+          unobserved++;
+        }
+        // Otherwise its listener may still be on the way
+      }
+    }
+
+    DeviceEventManagerModule.RCTDeviceEventEmitter emitter = null;
+    int sent = 0;
+    for (PendingEvent event : ready) {
+      Object payload = event.payloadFactory.create();
+      if (payload == null) {
+        continue;
+      }
+      if (emitter == null) {
+        emitter = reactContext.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class);
+      }
+      emitter.emit(event.eventName, payload instanceof Bundle ? MediaBrowserUtils.toWritableMap((Bundle) payload) : payload);
+      sent++;
+    }
+    synchronized (this) {
+      delivered += sent;
+    }
+  }
+
+  private static final class PendingEvent {
+    final String eventName;
+    final PayloadFactory payloadFactory;
+    final long queuedAt;
+
+    PendingEvent(String eventName, PayloadFactory payloadFactory, long queuedAt) {
+      this.eventName = eventName;
+      this.payloadFactory = payloadFactory;
+      this.queuedAt = queuedAt;
+    }
+  }
+}
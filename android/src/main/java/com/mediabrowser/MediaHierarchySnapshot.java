@@ -0,0 +1,412 @@
+package com.mediabrowser;
+
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Compact binary copy of the hierarchy, memory-mapped on start so the service can answer
+// before JS has run. Layout (big endian):
+//   magic, version, rootId, parent count,
+//   per parent: parentId, children offset, children count,
+//   children blocks: per item mediaId, title, subtitle, description, iconUri, mediaUri, flags, extras
+// iconUri is where the artwork comes from (the remote uri, not our content uri), mapped again on read.
+// Strings are a byte length (-1 for null) followed by UTF-8. Lengths are checked against what is
+// left of the file, a torn or corrupt snapshot decodes to nothing rather than crashing the service.
+public class MediaHierarchySnapshot {
+  private static final String TAG = "MediaHierarchySnapshot";
+
+  public static final String FILE_NAME = "media_hierarchy.snapshot";
+
+  private static final int MAGIC = 0x4d425353;
+  private static final int VERSION = 3;
+
+  private static final byte TYPE_STRING = 1;
+  private static final byte TYPE_INT = 2;
+  private static final byte TYPE_LONG = 3;
+  private static final byte TYPE_DOUBLE = 4;
+  private static final byte TYPE_BOOLEAN = 5;
+  private static final byte TYPE_BUNDLE = 6;
+  private static final byte TYPE_DOUBLE_ARRAY = 7;
+  private static final byte TYPE_BOOLEAN_ARRAY = 8;
+  private static final byte TYPE_STRING_ARRAY = 9;
+  private static final byte TYPE_BUNDLE_ARRAY = 10;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final ByteBuffer buffer;
+
+  private final String rootId;
+
+  // parentId -> { offset, count }, children themselves are only decoded when browsed
+  private final Map<String, int[]> parents;
+
+  private final ConcurrentHashMap<String, List<MediaBrowserCompat.MediaItem>> decoded = new ConcurrentHashMap<>();
+
+  private volatile Map<String, MediaBrowserCompat.MediaItem> itemsById;
+
+  private MediaHierarchySnapshot(ByteBuffer buffer, String rootId, Map<String, int[]> parents) {
+    this.buffer = buffer;
+    this.rootId = rootId;
+    this.parents = parents;
+  }
+
+  public static MediaHierarchySnapshot open(File file) {
+    if (!file.isFile()) {
+      return null;
+    }
+    try (RandomAccessFile in = new RandomAccessFile(file, "r"); FileChannel channel = in.getChannel()) {
+      // The mapping stays valid after the channel is closed
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+        Log.w(TAG, "Ignoring snapshot with an unknown format");
+        return null;
+      }
+      String rootId = readString(buffer);
+      // Each parent takes at least its id length, offset and count
+      int parentCount = readArrayLength(buffer, 12);
+      Map<String, int[]> parents = new HashMap<>(parentCount * 2);
+      for (int i = 0; i < parentCount; i++) {
+        String parentId = readString(buffer);
+        parents.put(parentId, new int[]{buffer.getInt(), buffer.getInt()});
+      }
+      int blocksStart = buffer.position();
+      for (int[] parent : parents.values()) {
+        parent[0] += blocksStart;
+        if (parent[0] < blocksStart || parent[0] > buffer.limit() || parent[1] < 0) {
+          throw new IllegalArgumentException("Parent table points past the end of the snapshot");
+        }
+      }
+      return new MediaHierarchySnapshot(buffer, rootId, parents);
+    } catch (IOException | RuntimeException e) {
+      Log.w(TAG, "Could not open snapshot " + file, e);
+      return null;
+    }
+  }
+
+  public String getRootId() {
+    return rootId;
+  }
+
+  public List<MediaBrowserCompat.MediaItem> getChildren(String parentId) {
+    List<MediaBrowserCompat.MediaItem> children = decoded.get(parentId);
+    if (children != null) {
+      return children;
+    }
+    int[] parent = parents.get(parentId);
+    if (parent == null) {
+      return null;
+    }
+    try {
+      children = decodeChildren(parent[0], parent[1]);
+    } catch (RuntimeException e) {
+      Log.w(TAG, "Corrupt snapshot entry for " + parentId, e);
+      children = Collections.emptyList();
+    }
+    List<MediaBrowserCompat.MediaItem> existing = decoded.putIfAbsent(parentId, children);
+    return existing != null ? existing : children;
+  }
+
+  public MediaBrowserCompat.MediaItem getItemById(String itemId) {
+    Map<String, MediaBrowserCompat.MediaItem> itemsById = this.itemsById;
+    if (itemsById == null) {
+      // Ids carry no parent, so the first lookup decodes everything
+      Map<String, MediaBrowserCompat.MediaItem> index = new HashMap<>();
+      for (String parentId : parents.keySet()) {
+        for (MediaBrowserCompat.MediaItem item : getChildren(parentId)) {
+          index.put(item.getMediaId(), item);
+        }
+      }
+      this.itemsById = itemsById = index;
+    }
+    return itemsById.get(itemId);
+  }
+
+  // Every parent, decoded, for when the store takes over the snapshot
+  public Map<String, List<MediaBrowserCompat.MediaItem>> hydrate() {
+    Map<String, List<MediaBrowserCompat.MediaItem>> hierarchy = new HashMap<>();
+    for (String parentId : parents.keySet()) {
+      hierarchy.put(parentId, getChildren(parentId));
+    }
+    return hierarchy;
+  }
+
+  private List<MediaBrowserCompat.MediaItem> decodeChildren(int offset, int count) {
+    // Absolute position on a private view, the mapping is shared between binder threads
+    ByteBuffer in = buffer.duplicate();
+    in.position(offset);
+    List<MediaBrowserCompat.MediaItem> children = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      MediaDescriptionCompat.Builder description = new MediaDescriptionCompat.Builder()
+        .setMediaId(readString(in))
+        .setTitle(readString(in))
+        .setSubtitle(readString(in))
+        .setDescription(readString(in));
+      String iconUri = readString(in);
+      if (iconUri != null) {
+        description.setIconUri(restoreIconUri(Uri.parse(iconUri)));
+      }
+      String mediaUri = readString(in);
+      if (mediaUri != null) {
+        description.setMediaUri(Uri.parse(mediaUri));
+      }
+      int flags = in.getInt();
+      description.setExtras(readBundle(in));
+      children.add(new MediaBrowserCompat.MediaItem(description.build(), flags));
+    }
+    return Collections.unmodifiableList(children);
+  }
+
+  // The provider's uri map starts empty in a new process, remote artwork is mapped again
+  private static Uri restoreIconUri(Uri uri) {
+    String scheme = uri.getScheme();
+    return "http".equals(scheme) || "https".equals(scheme) ? MediaArtworkContentProvider.mapUri(uri) : uri;
+  }
+
+  private static Bundle readBundle(ByteBuffer in) {
+    // Each entry takes at least a key length and a type
+    int count = readLength(in, 5);
+    if (count < 0) {
+      return null;
+    }
+    Bundle bundle = new Bundle();
+    for (int i = 0; i < count; i++) {
+      String key = readString(in);
+      switch (in.get()) {
+        case TYPE_STRING:
+          bundle.putString(key, readString(in));
+          break;
+        case TYPE_INT:
+          bundle.putInt(key, in.getInt());
+          break;
+        case TYPE_LONG:
+          bundle.putLong(key, in.getLong());
+          break;
+        case TYPE_DOUBLE:
+          bundle.putDouble(key, in.getDouble());
+          break;
+        case TYPE_BOOLEAN:
+          bundle.putBoolean(key, in.get() != 0);
+          break;
+        case TYPE_BUNDLE:
+          bundle.putBundle(key, readBundle(in));
+          break;
+        case TYPE_DOUBLE_ARRAY:
+          double[] doubles = new double[readArrayLength(in, 8)];
+          for (int j = 0; j < doubles.length; j++) {
+            doubles[j] = in.getDouble();
+          }
+          bundle.putDoubleArray(key, doubles);
+          break;
+        case TYPE_BOOLEAN_ARRAY:
+          boolean[] booleans = new boolean[readArrayLength(in, 1)];
+          for (int j = 0; j < booleans.length; j++) {
+            booleans[j] = in.get() != 0;
+          }
+          bundle.putBooleanArray(key, booleans);
+          break;
+        case TYPE_STRING_ARRAY:
+          String[] strings = new String[readArrayLength(in, 4)];
+          for (int j = 0; j < strings.length; j++) {
+            strings[j] = readString(in);
+          }
+          bundle.putStringArray(key, strings);
+          break;
+        case TYPE_BUNDLE_ARRAY:
+          Bundle[] bundles = new Bundle[readArrayLength(in, 4)];
+          for (int j = 0; j < bundles.length; j++) {
+            bundles[j] = readBundle(in);
+          }
+          bundle.putParcelableArray(key, bundles);
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown extra type for " + key);
+      }
+    }
+    return bundle;
+  }
+
+  private static String readString(ByteBuffer in) {
+    int length = readLength(in, 1);
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.get(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  // -1 stands for null, anything else has to fit in what is left
+  private static int readLength(ByteBuffer in, int minElementBytes) {
+    int length = in.getInt();
+    if (length < -1 || (long) length * minElementBytes > in.remaining()) {
+      throw new IllegalArgumentException("Length " + length + " past the end of the snapshot");
+    }
+    return length;
+  }
+
+  private static int readArrayLength(ByteBuffer in, int minElementBytes) {
+    int length = readLength(in, minElementBytes);
+    if (length < 0) {
+      throw new IllegalArgumentException("Negative array length");
+    }
+    return length;
+  }
+
+  // Writes to a temp file and renames it over the old snapshot, so readers only ever see a whole one.
+  // Icon bitmaps are kept as the uri they were loaded from, extras of other types are left out. The hierarchy must not change while this runs.
+  public static void write(File file, String rootId, Map<String, List<MediaBrowserCompat.MediaItem>> hierarchy) throws IOException {
+    ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+    DataOutputStream blocksOut = new DataOutputStream(blocks);
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    DataOutputStream headerOut = new DataOutputStream(header);
+
+    headerOut.writeInt(MAGIC);
+    headerOut.writeInt(VERSION);
+    writeString(headerOut, rootId);
+    // The count and the entries come from the same pass
+    List<Map.Entry<String, List<MediaBrowserCompat.MediaItem>>> entries = new ArrayList<>(hierarchy.entrySet());
+    headerOut.writeInt(entries.size());
+    for (Map.Entry<String, List<MediaBrowserCompat.MediaItem>> entry : entries) {
+      List<MediaBrowserCompat.MediaItem> children = entry.getValue();
+      writeString(headerOut, entry.getKey());
+      headerOut.writeInt(blocksOut.size());
+      headerOut.writeInt(children.size());
+      for (MediaBrowserCompat.MediaItem item : children) {
+        writeItem(blocksOut, item);
+      }
+    }
+
+    File tmp = new File(file.getPath() + ".tmp");
+    try (FileOutputStream out = new FileOutputStream(tmp)) {
+      header.writeTo(out);
+      blocks.writeTo(out);
+      out.getFD().sync();
+    } catch (IOException e) {
+      tmp.delete();
+      throw e;
+    }
+    if (!tmp.renameTo(file)) {
+      tmp.delete();
+      throw new IOException("Could not replace " + file);
+    }
+  }
+
+  private static void writeItem(DataOutputStream out, MediaBrowserCompat.MediaItem item) throws IOException {
+    MediaDescriptionCompat description = item.getDescription();
+    writeString(out, description.getMediaId());
+    writeString(out, description.getTitle());
+    writeString(out, description.getSubtitle());
+    writeString(out, description.getDescription());
+    // Content uris of ours only resolve in the process that mapped them
+    writeString(out, MediaArtworkContentProvider.sourceIconUri(description));
+    writeString(out, description.getMediaUri());
+    out.writeInt(item.getFlags());
+
+    writeBundle(out, description.getExtras());
+  }
+
+  private static void writeBundle(DataOutputStream out, Bundle bundle) throws IOException {
+    if (bundle == null) {
+      out.writeInt(-1);
+      return;
+    }
+    List<String> keys = new ArrayList<>();
+    for (String key : bundle.keySet()) {
+      if (isPersistable(bundle.get(key))) {
+        keys.add(key);
+      }
+    }
+    out.writeInt(keys.size());
+    for (String key : keys) {
+      Object value = bundle.get(key);
+      writeString(out, key);
+      if (value == null || value instanceof String) {
+        out.writeByte(TYPE_STRING);
+        writeString(out, value);
+      } else if (value instanceof Integer) {
+        out.writeByte(TYPE_INT);
+        out.writeInt((Integer) value);
+      } else if (value instanceof Long) {
+        out.writeByte(TYPE_LONG);
+        out.writeLong((Long) value);
+      } else if (value instanceof Double) {
+        out.writeByte(TYPE_DOUBLE);
+        out.writeDouble((Double) value);
+      } else if (value instanceof Boolean) {
+        out.writeByte(TYPE_BOOLEAN);
+        out.writeByte((Boolean) value ? 1 : 0);
+      } else if (value instanceof Bundle) {
+        out.writeByte(TYPE_BUNDLE);
+        writeBundle(out, (Bundle) value);
+      } else if (value instanceof double[]) {
+        out.writeByte(TYPE_DOUBLE_ARRAY);
+        out.writeInt(((double[]) value).length);
+        for (double element : (double[]) value) {
+          out.writeDouble(element);
+        }
+      } else if (value instanceof boolean[]) {
+        out.writeByte(TYPE_BOOLEAN_ARRAY);
+        out.writeInt(((boolean[]) value).length);
+        for (boolean element : (boolean[]) value) {
+          out.writeByte(element ? 1 : 0);
+        }
+      } else if (value instanceof String[]) {
+        out.writeByte(TYPE_STRING_ARRAY);
+        out.writeInt(((String[]) value).length);
+        for (String element : (String[]) value) {
+          writeString(out, element);
+        }
+      } else {
+        out.writeByte(TYPE_BUNDLE_ARRAY);
+        out.writeInt(((Object[]) value).length);
+        for (Object element : (Object[]) value) {
+          writeBundle(out, (Bundle) element);
+        }
+      }
+    }
+  }
+
+  // The shapes MediaBrowserUtils.toBundle produces, plus the ints and longs of the standard extras
+  private static boolean isPersistable(Object value) {
+    if (value instanceof Object[] && !(value instanceof String[])) {
+      for (Object element : (Object[]) value) {
+        if (element != null && !(element instanceof Bundle)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return value == null || value instanceof String || value instanceof Integer || value instanceof Long
+      || value instanceof Double || value instanceof Boolean || value instanceof Bundle
+      || value instanceof double[] || value instanceof boolean[] || value instanceof String[];
+  }
+
+  private static void writeString(DataOutputStream out, Object value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = value.toString().getBytes(UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+}
@@ -0,0 +1,80 @@
+package com.mediabrowser;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+public class MediaItemsChangeDispatcher {
+  // Roughly one frame
+  public static final long DEFAULT_WINDOW_MS = 16;
+
+  // A steady stream of updates still gets flushed after this many windows
+  private static final int MAX_WINDOWS_PER_FLUSH = 4;
+
+  private final Handler handler = new Handler(Looper.getMainLooper());
+
+  private final Set<String> dirtyParentIds = new LinkedHashSet<>();
+
+  private final MediaItemsStore.MediaItemsUpdateListener listener;
+
+  private long windowMs = DEFAULT_WINDOW_MS;
+
+  private long firstDirtyAt;
+
+  private final Runnable flushRunnable = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  public MediaItemsChangeDispatcher(MediaItemsStore.MediaItemsUpdateListener listener) {
+    this.listener = listener;
+  }
+
+  public synchronized void setWindowMs(long windowMs) {
+    this.windowMs = Math.max(0, windowMs);
+  }
+
+  public synchronized long getWindowMs() {
+    return windowMs;
+  }
+
+  public void markDirty(String parentId) {
+    if (parentId == null) {
+      return;
+    }
+    synchronized (this) {
+      long now = SystemClock.uptimeMillis();
+      if (dirtyParentIds.isEmpty()) {
+        firstDirtyAt = now;
+      }
+      dirtyParentIds.add(parentId);
+
+      // Wait for the window to be quiet, but don't hold notifications back forever
+      long flushAt = Math.min(now + windowMs, firstDirtyAt + windowMs * MAX_WINDOWS_PER_FLUSH);
+      handler.removeCallbacks(flushRunnable);
+      handler.postAtTime(flushRunnable, flushAt);
+    }
+  }
+
+  public void flush() {
+    List<String> parentIds;
+    synchronized (this) {
+      handler.removeCallbacks(flushRunnable);
+      if (dirtyParentIds.isEmpty()) {
+        return;
+      }
+      parentIds = new ArrayList<>(dirtyParentIds);
+      dirtyParentIds.clear();
+    }
+    for (String parentId : parentIds) {
+      listener.onMediaItemsUpdated(parentId);
+    }
+  }
+}
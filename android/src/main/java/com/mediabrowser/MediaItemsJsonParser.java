@@ -0,0 +1,298 @@
+package com.mediabrowser;
+
+import static android.support.v4.media.MediaDescriptionCompat.EXTRA_DOWNLOAD_STATUS;
+
+import static androidx.media.utils.MediaConstants.DESCRIPTION_EXTRAS_KEY_COMPLETION_PERCENTAGE;
+import static androidx.media.utils.MediaConstants.DESCRIPTION_EXTRAS_KEY_COMPLETION_STATUS;
+import static androidx.media.utils.MediaConstants.METADATA_KEY_IS_EXPLICIT;
+
+import android.os.Bundle;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import androidx.media.utils.MediaConstants;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Streams the setMediaItems tree ({ id, root: [items] }) straight into MediaItems,
+// without building ReadableMaps on the way
+public class MediaItemsJsonParser {
+  public interface IconResolver {
+    // icon is null for items without one
+    void applyIcon(MediaDescriptionCompat.Builder description, String mediaId, String icon);
+  }
+
+  private final IconResolver iconResolver;
+
+  private final boolean internKeys;
+
+  private final Map<String, List<MediaBrowserCompat.MediaItem>> hierarchy = new HashMap<>();
+
+  private String rootId;
+
+  private MediaItemsJsonParser(boolean internKeys, IconResolver iconResolver) {
+    this.internKeys = internKeys;
+    this.iconResolver = iconResolver;
+  }
+
+  public static MediaItemsJsonParser parse(Reader in, boolean internKeys, IconResolver iconResolver) throws IOException {
+    MediaItemsJsonParser parser = new MediaItemsJsonParser(internKeys, iconResolver);
+    try (JsonReader reader = new JsonReader(in)) {
+      parser.parseTree(reader);
+    }
+    return parser;
+  }
+
+  public String getRootId() {
+    return rootId;
+  }
+
+  public Map<String, List<MediaBrowserCompat.MediaItem>> getHierarchy() {
+    return hierarchy;
+  }
+
+  private void parseTree(JsonReader reader) throws IOException {
+    List<MediaBrowserCompat.MediaItem> rootItems = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "id":
+          rootId = nextStringOrNull(reader);
+          break;
+        case "root":
+          rootItems = parseItems(reader);
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+
+    if (rootId == null) {
+      throw new IOException("Required key id was not provided.");
+    }
+    if (rootItems != null) {
+      addChildren(rootId, rootItems);
+    }
+  }
+
+  private List<MediaBrowserCompat.MediaItem> parseItems(JsonReader reader) throws IOException {
+    if (reader.peek() == JsonToken.NULL) {
+      reader.nextNull();
+      return null;
+    }
+    List<MediaBrowserCompat.MediaItem> items = new ArrayList<>();
+    reader.beginArray();
+    while (reader.hasNext()) {
+      items.add(parseItem(reader));
+    }
+    reader.endArray();
+    return items;
+  }
+
+  private MediaBrowserCompat.MediaItem parseItem(JsonReader reader) throws IOException {
+    String mediaId = null;
+    String title = null;
+    String subTitle = null;
+    String icon = null;
+    String playableOrBrowsable = null;
+    List<MediaBrowserCompat.MediaItem> children = null;
+    Bundle extras = new Bundle();
+
+    // Keys can come in any order, so the item is only built once the object is done
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "id":
+          mediaId = nextStringOrNull(reader);
+          break;
+        case "title":
+          title = nextStringOrNull(reader);
+          break;
+        case "subTitle":
+          subTitle = nextStringOrNull(reader);
+          break;
+        case "icon":
+          icon = nextStringOrNull(reader);
+          break;
+        case "playableOrBrowsable":
+          playableOrBrowsable = nextStringOrNull(reader);
+          break;
+        case "browsableStyle":
+          String browsableStyle = nextStringOrNull(reader);
+          if (browsableStyle != null) {
+            extras.putInt(MediaConstants.DESCRIPTION_EXTRAS_KEY_CONTENT_STYLE_BROWSABLE, MediaBrowserModule.mapContentStyle(browsableStyle));
+          }
+          break;
+        case "playableStyle":
+          String playableStyle = nextStringOrNull(reader);
+          if (playableStyle != null) {
+            extras.putInt(MediaConstants.DESCRIPTION_EXTRAS_KEY_CONTENT_STYLE_PLAYABLE, MediaBrowserModule.mapContentStyle(playableStyle));
+          }
+          break;
+        case "groupTitle":
+          String groupTitle = nextStringOrNull(reader);
+          if (groupTitle != null) {
+            extras.putString(MediaConstants.DESCRIPTION_EXTRAS_KEY_CONTENT_STYLE_GROUP_TITLE, groupTitle);
+          }
+          break;
+        case "extras":
+          parseExtras(reader, extras);
+          break;
+        case "children":
+          children = parseItems(reader);
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+
+    if (playableOrBrowsable == null) {
+      throw new IOException("Required field playableOrBrowsable not provided.");
+    }
+
+    MediaDescriptionCompat.Builder description = new MediaDescriptionCompat.Builder()
+      .setMediaId(mediaId)
+      .setTitle(title)
+      .setSubtitle(subTitle);
+    iconResolver.applyIcon(description, mediaId, icon);
+    description.setExtras(extras);
+
+    int flags = "PLAYABLE".equals(playableOrBrowsable)
+      ? MediaBrowserCompat.MediaItem.FLAG_PLAYABLE
+      : MediaBrowserCompat.MediaItem.FLAG_BROWSABLE;
+
+    if (children != null && !children.isEmpty()) {
+      addChildren(mediaId, children);
+    }
+    return new MediaBrowserCompat.MediaItem(description.build(), flags);
+  }
+
+  private void parseExtras(JsonReader reader, Bundle extras) throws IOException {
+    if (reader.peek() == JsonToken.NULL) {
+      reader.nextNull();
+      return;
+    }
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String key = reader.nextName();
+      if (reader.peek() == JsonToken.NULL) {
+        reader.nextNull();
+        continue;
+      }
+      switch (key) {
+        case "info":
+          if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+            extras.putBundle("info", readBundle(reader));
+          } else {
+            // setMediaItems only takes an info map too
+            reader.skipValue();
+          }
+          break;
+        case EXTRA_DOWNLOAD_STATUS:
+          extras.putInt(EXTRA_DOWNLOAD_STATUS, reader.nextInt());
+          break;
+        case METADATA_KEY_IS_EXPLICIT:
+          extras.putLong(METADATA_KEY_IS_EXPLICIT, reader.nextInt());
+          break;
+        case DESCRIPTION_EXTRAS_KEY_COMPLETION_STATUS:
+          extras.putInt(DESCRIPTION_EXTRAS_KEY_COMPLETION_STATUS, reader.nextInt());
+          break;
+        case DESCRIPTION_EXTRAS_KEY_COMPLETION_PERCENTAGE:
+          extras.putDouble(DESCRIPTION_EXTRAS_KEY_COMPLETION_PERCENTAGE, reader.nextDouble());
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+  }
+
+  // Streams an object into the same Bundle MediaBrowserUtils.toBundle builds from a ReadableMap
+  private Bundle readBundle(JsonReader reader) throws IOException {
+    Bundle bundle = new Bundle();
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String key = reader.nextName();
+      if (internKeys) {
+        key = key.intern();
+      }
+      switch (reader.peek()) {
+        case BEGIN_OBJECT:
+          bundle.putBundle(key, readBundle(reader));
+          break;
+        case BEGIN_ARRAY:
+          MediaBrowserUtils.putList(bundle, key, readList(reader));
+          break;
+        case NUMBER:
+          bundle.putDouble(key, reader.nextDouble());
+          break;
+        case BOOLEAN:
+          bundle.putBoolean(key, reader.nextBoolean());
+          break;
+        case NULL:
+          reader.nextNull();
+          bundle.putString(key, null);
+          break;
+        default:
+          bundle.putString(key, reader.nextString());
+      }
+    }
+    reader.endObject();
+    return bundle;
+  }
+
+  private List<Object> readList(JsonReader reader) throws IOException {
+    List<Object> values = new ArrayList<>();
+    reader.beginArray();
+    while (reader.hasNext()) {
+      switch (reader.peek()) {
+        case BEGIN_OBJECT:
+          values.add(readBundle(reader));
+          break;
+        case BEGIN_ARRAY:
+          values.add(readList(reader));
+          break;
+        case NUMBER:
+          values.add(reader.nextDouble());
+          break;
+        case BOOLEAN:
+          values.add(reader.nextBoolean());
+          break;
+        case NULL:
+          reader.nextNull();
+          values.add(null);
+          break;
+        default:
+          values.add(reader.nextString());
+      }
+    }
+    reader.endArray();
+    return values;
+  }
+
+  private void addChildren(String parentId, List<MediaBrowserCompat.MediaItem> children) {
+    List<MediaBrowserCompat.MediaItem> siblings = hierarchy.get(parentId);
+    if (siblings == null) {
+      hierarchy.put(parentId, children);
+    } else {
+      siblings.addAll(children);
+    }
+  }
+
+  private static String nextStringOrNull(JsonReader reader) throws IOException {
+    if (reader.peek() == JsonToken.NULL) {
+      reader.nextNull();
+      return null;
+    }
+    return reader.nextString();
+  }
+}
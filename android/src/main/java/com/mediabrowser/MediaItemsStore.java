@@ -2,33 +2,77 @@ package com.mediabrowser;
 
 import android.content.ComponentName;
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.media.session.MediaController;
 import android.media.session.MediaSession;
 import android.media.session.MediaSessionManager;
-import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.service.notification.NotificationListenerService;
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.session.MediaControllerCompat;
 import android.support.v4.media.session.MediaSessionCompat;
+import android.util.Log;
 
 import com.facebook.react.bridge.ReactApplicationContext;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class MediaItemsStore extends NotificationListenerService {
-  private ReactApplicationContext reactContext;
+  private static final String TAG = "MediaItemsStore";
+
+  private volatile ReactApplicationContext reactContext;
 
   private static MediaItemsStore instance;
 
   private MediaSessionCompat.Token sessionToken;
 
-  private Map<String, List<MediaBrowserCompat.MediaItem>> mediaItemsHierarchy;
+  // Copy-on-write: a published snapshot is never changed. Writers build the next one and publish it
+  // with a single volatile write, so readers never lock and never see a half-applied update.
+  private volatile Snapshot snapshot;
+
+  // Serializes writers, readers never take it
+  private final Object writeLock = new Object();
+
+  private volatile String rootId;
+
+  // Page size for clients that don't ask for a page, keeps a huge node from blowing the binder limit
+  public static final int DEFAULT_PAGE_SIZE = 1000;
+
+  private volatile int defaultPageSize = DEFAULT_PAGE_SIZE;
+
+  // How far down the ranking findPlayable looks for something playable
+  private static final int SEARCH_CANDIDATES = 20;
+
+  // Coalesces change notifications so clients reload each parent once per window
+  private final MediaItemsChangeDispatcher changeDispatcher = new MediaItemsChangeDispatcher(parentId -> {
+    MediaItemsUpdateListener listener = this.listener;
+    if (listener != null) {
+      listener.onMediaItemsUpdated(parentId);
+    }
+  });
+
+  // Wait for updates to settle before writing the snapshot
+  private static final long PERSIST_DELAY_MS = 2000;
+
+  private File snapshotFile;
+
+  private Handler persistHandler;
 
-  private String rootId;
+  // Last persisted tree, served until JS provides one or something writes to the store
+  private volatile MediaHierarchySnapshot restored;
+
+  private final Runnable persistRunnable = this::persistSnapshot;
 
   public void setReactApplicationContext(ReactApplicationContext reactContext) {
     this.reactContext = reactContext;
@@ -39,7 +83,7 @@ public class MediaItemsStore extends NotificationListenerService {
   }
 
   private MediaItemsStore() {
-    mediaItemsHierarchy = new HashMap<>();
+    snapshot = new Snapshot();
   }
 
   public static synchronized MediaItemsStore getInstance() {
@@ -49,139 +93,534 @@ public class MediaItemsStore extends NotificationListenerService {
     return instance;
   }
 
+  // Persists the hierarchy to app storage and, if nothing was set yet, serves the last persisted one
+  public void enablePersistence(Context context) {
+    synchronized (writeLock) {
+      if (snapshotFile != null) {
+        return;
+      }
+      snapshotFile = new File(context.getApplicationContext().getFilesDir(), MediaHierarchySnapshot.FILE_NAME);
+      HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+      thread.start();
+      persistHandler = new Handler(thread.getLooper());
+      if (rootId == null && snapshot.hierarchy.isEmpty()) {
+        restored = MediaHierarchySnapshot.open(snapshotFile);
+      }
+    }
+  }
+
   public void setRootId(String rootId) {
     this.rootId = rootId;
   }
 
   public String getRootId() {
-    return rootId;
+    String rootId = this.rootId;
+    MediaHierarchySnapshot restored = this.restored;
+    return rootId == null && restored != null ? restored.getRootId() : rootId;
   }
 
   public void setMediaItemsHierarchy(Map<String, List<MediaBrowserCompat.MediaItem>> hierarchy) {
-    this.mediaItemsHierarchy = hierarchy;
-    if (listener != null) {
-      String rootId = getRootId();
-      // If the root ID is null, try to get it from the first item in the hierarchy
-      if (rootId == null && !hierarchy.isEmpty()) {
-        Map.Entry<String, List<MediaBrowserCompat.MediaItem>> firstEntry = hierarchy.entrySet().iterator().next();
-        rootId = firstEntry.getKey();
-      }
-      listener.onMediaItemsUpdated(rootId);
+    Snapshot next = new Snapshot();
+    for (Map.Entry<String, List<MediaBrowserCompat.MediaItem>> entry : hierarchy.entrySet()) {
+      List<MediaBrowserCompat.MediaItem> children = freeze(entry.getValue());
+      next.hierarchy.put(entry.getKey(), children);
+      next.reindexChildren(entry.getKey(), children, 0);
+    }
+    synchronized (writeLock) {
+      // Publish the whole tree at once
+      snapshot = next;
+      restored = null;
+    }
+    String rootId = getRootId();
+    // If the root ID is null, try to get it from the first item in the hierarchy
+    if (rootId == null && !hierarchy.isEmpty()) {
+      Map.Entry<String, List<MediaBrowserCompat.MediaItem>> firstEntry = hierarchy.entrySet().iterator().next();
+      rootId = firstEntry.getKey();
     }
+    notifyMediaItemsUpdated(rootId);
   }
 
   public List<MediaBrowserCompat.MediaItem> getMediaItemsByParentId(String parentId) {
-    return mediaItemsHierarchy.get(parentId);
+    List<MediaBrowserCompat.MediaItem> children = snapshot.hierarchy.get(parentId);
+    MediaHierarchySnapshot restored = this.restored;
+    return children == null && restored != null ? restored.getChildren(parentId) : children;
+  }
+
+  public List<MediaBrowserCompat.MediaItem> getMediaItemsPage(String parentId, int page, int pageSize) {
+    List<MediaBrowserCompat.MediaItem> children = getMediaItemsByParentId(parentId);
+    if (children == null || pageSize <= 0) {
+      return children;
+    }
+    long fromIndex = (long) page * pageSize;
+    if (page < 0 || fromIndex >= children.size()) {
+      return Collections.emptyList();
+    }
+    int toIndex = (int) Math.min(fromIndex + pageSize, children.size());
+    // Children are immutable, so a view is safe to hand out
+    return children.subList((int) fromIndex, toIndex);
+  }
+
+  public void setDefaultPageSize(int defaultPageSize) {
+    this.defaultPageSize = defaultPageSize;
+  }
+
+  public int getDefaultPageSize() {
+    return defaultPageSize;
   }
 
   public MediaBrowserCompat.MediaItem getMediaItemById(String itemId) {
-    for (Map.Entry<String, List<MediaBrowserCompat.MediaItem>> entry : mediaItemsHierarchy.entrySet()) {
-      List<MediaBrowserCompat.MediaItem> children = entry.getValue();
-      for (MediaBrowserCompat.MediaItem item : children) {
-        if (item.getMediaId().equals(itemId)) {
-          return item;
+    IndexEntry entry = snapshot.index.get(itemId);
+    if (entry != null) {
+      return entry.item;
+    }
+    MediaHierarchySnapshot restored = this.restored;
+    return restored != null ? restored.getItemById(itemId) : null; // Return null if the item is not found
+  }
+
+  public List<MediaBrowserCompat.MediaItem> search(String query, int limit) {
+    if (restored != null) {
+      // The restored tree is only decoded lazily, searching needs all of it indexed
+      synchronized (writeLock) {
+        adoptRestored();
+      }
+    }
+    Snapshot current = snapshot;
+    List<MediaBrowserCompat.MediaItem> results = new ArrayList<>();
+    for (String itemId : current.searchIndex.search(query, limit)) {
+      IndexEntry entry = current.index.get(itemId);
+      if (entry != null) {
+        results.add(entry.item);
+      }
+    }
+    return results;
+  }
+
+  // Best playable match for a spoken query like "play X"
+  public MediaBrowserCompat.MediaItem findPlayable(String query) {
+    for (MediaBrowserCompat.MediaItem item : search(query, SEARCH_CANDIDATES)) {
+      if (item.isPlayable()) {
+        return item;
+      }
+    }
+    return null;
+  }
+
+  // First playable item breadth first from the root, what "play music" with no query should start
+  public MediaBrowserCompat.MediaItem findFirstPlayable() {
+    String rootId = getRootId();
+    if (rootId == null) {
+      return null;
+    }
+    Set<String> visited = new HashSet<>();
+    List<String> level = Collections.singletonList(rootId);
+    while (!level.isEmpty()) {
+      List<String> nextLevel = new ArrayList<>();
+      for (String parentId : level) {
+        List<MediaBrowserCompat.MediaItem> children = visited.add(parentId) ? getMediaItemsByParentId(parentId) : null;
+        if (children == null) {
+          continue;
+        }
+        for (MediaBrowserCompat.MediaItem item : children) {
+          if (item.isPlayable()) {
+            return item;
+          }
+          if (item.isBrowsable()) {
+            nextLevel.add(item.getMediaId());
+          }
         }
       }
+      level = nextLevel;
     }
-    return null; // Return null if the item is not found
+    return null;
+  }
+
+  // Bytes the item takes in a binder transaction, cached for stored items
+  public int getParcelSize(MediaBrowserCompat.MediaItem item) {
+    IndexEntry entry = snapshot.index.get(item.getMediaId());
+    return entry != null && entry.item == item ? entry.parcelSize() : MediaBrowserUtils.parcelSize(item);
   }
 
   public void pushMediaItem(String parentId, MediaBrowserCompat.MediaItem newItem) {
-    List<MediaBrowserCompat.MediaItem> children = mediaItemsHierarchy.get(parentId);
-    if (children != null) {
-      children.add(newItem);
-    }
-    if (listener != null) {
-      listener.onMediaItemsUpdated(parentId);
+    synchronized (writeLock) {
+      Snapshot current = adoptRestored();
+      List<MediaBrowserCompat.MediaItem> children = current.hierarchy.get(parentId);
+      if (children != null) {
+        Snapshot next = current.copy();
+        List<MediaBrowserCompat.MediaItem> updated = new ArrayList<>(children);
+        updated.add(newItem);
+        next.hierarchy.put(parentId, Collections.unmodifiableList(updated));
+        next.indexItem(parentId, newItem, updated.size() - 1);
+        snapshot = next;
+      }
     }
+    notifyMediaItemsUpdated(parentId);
   }
 
   public void deleteMediaItem(String itemId) {
     String parentId = null;
-    for (Map.Entry<String, List<MediaBrowserCompat.MediaItem>> entry : mediaItemsHierarchy.entrySet()) {
-      List<MediaBrowserCompat.MediaItem> children = entry.getValue();
-      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-        boolean removed = children.removeIf(item -> item.getMediaId().equals(itemId));
-        if (removed) {
-          parentId = entry.getKey();
-          break;
-        }
-      } else {
-        Iterator<MediaBrowserCompat.MediaItem> iterator = children.iterator();
-        while (iterator.hasNext()) {
-          MediaBrowserCompat.MediaItem item = iterator.next();
-          if (item.getMediaId().equals(itemId)) {
-            iterator.remove();
-            parentId = entry.getKey();
-            break;
-          }
-        }
+    synchronized (writeLock) {
+      Snapshot current = adoptRestored();
+      IndexEntry entry = current.index.get(itemId);
+      if (entry != null) {
+        parentId = entry.parentId;
+        Snapshot next = current.copy();
+        next.removeEntry(itemId);
+        List<MediaBrowserCompat.MediaItem> updated = new ArrayList<>(current.hierarchy.get(parentId));
+        updated.remove(entry.position);
+        List<MediaBrowserCompat.MediaItem> children = Collections.unmodifiableList(updated);
+        next.hierarchy.put(parentId, children);
+        // Only the items after the removed one moved
+        next.reindexChildren(parentId, children, entry.position);
+        snapshot = next;
       }
     }
-    if (listener != null && parentId != null) {
-      listener.onMediaItemsUpdated(parentId);
+    if (parentId != null) {
+      notifyMediaItemsUpdated(parentId);
     }
   }
 
   public void updateMediaItem(MediaBrowserCompat.MediaItem updatedItem) {
-    String itemId = updatedItem.getMediaId();
+    updateMediaItem(updatedItem.getMediaId(), current -> updatedItem);
+  }
+
+  public void updateMediaItem(String itemId, MediaItemPatch patch) {
     String parentId = null;
-    for (Map.Entry<String, List<MediaBrowserCompat.MediaItem>> entry : mediaItemsHierarchy.entrySet()) {
-      List<MediaBrowserCompat.MediaItem> children = entry.getValue();
-      for (int i = 0; i < children.size(); i++) {
-        MediaBrowserCompat.MediaItem currentItem = children.get(i);
-        if (currentItem.getMediaId().equals(itemId)) {
-          children.set(i, updatedItem);
-          parentId = entry.getKey();
-          break;
+    synchronized (writeLock) {
+      Snapshot current = adoptRestored();
+      IndexEntry entry = current.index.get(itemId);
+      MediaBrowserCompat.MediaItem updatedItem = entry != null ? patch.apply(entry.item) : null;
+      if (updatedItem != null) {
+        parentId = entry.parentId;
+        Snapshot next = current.copy();
+        List<MediaBrowserCompat.MediaItem> updated = new ArrayList<>(current.hierarchy.get(parentId));
+        updated.set(entry.position, updatedItem);
+        next.hierarchy.put(parentId, Collections.unmodifiableList(updated));
+        next.indexItem(parentId, updatedItem, entry.position);
+        snapshot = next;
+      }
+    }
+    if (parentId != null) {
+      notifyMediaItemsUpdated(parentId);
+    }
+  }
+
+  public void updateMediaItems(String parentId, List<MediaBrowserCompat.MediaItem> updatedItems, boolean replace) {
+    boolean changed = true;
+    synchronized (writeLock) {
+      Snapshot current = adoptRestored();
+      List<MediaBrowserCompat.MediaItem> previous = current.hierarchy.get(parentId);
+      Snapshot next;
+      if (previous == null) {
+        next = current.copy();
+        List<MediaBrowserCompat.MediaItem> children = freeze(updatedItems);
+        next.hierarchy.put(parentId, children);
+        next.reindexChildren(parentId, children, 0);
+      } else if (replace) {
+        // Replace all existing items with the new list, touching only what differs
+        next = replaceChildren(current, parentId, previous, updatedItems);
+      } else {
+        // Update existing items and add new ones
+        next = mergeChildren(current, parentId, previous, updatedItems);
+      }
+      if (next != null) {
+        snapshot = next;
+      } else {
+        changed = false;
+      }
+    }
+    if (changed) {
+      notifyMediaItemsUpdated(parentId);
+    }
+  }
+
+  // The next snapshot, or null if nothing differs
+  private static Snapshot replaceChildren(Snapshot current, String parentId,
+                                         List<MediaBrowserCompat.MediaItem> previous,
+                                         List<MediaBrowserCompat.MediaItem> updatedItems) {
+    List<MediaBrowserCompat.MediaItem> merged = new ArrayList<>(updatedItems.size());
+    List<IndexEntry> changedEntries = new ArrayList<>();
+    Set<String> keptIds = new HashSet<>();
+    for (int i = 0; i < updatedItems.size(); i++) {
+      MediaBrowserCompat.MediaItem updatedItem = updatedItems.get(i);
+      IndexEntry entry = current.index.get(updatedItem.getMediaId());
+      if (entry != null && entry.parentId.equals(parentId) && entry.sameContent(updatedItem)) {
+        // Unchanged, keep the stored instance and only track a move
+        merged.add(entry.item);
+        if (entry.position != i) {
+          changedEntries.add(new IndexEntry(parentId, i, entry.item));
         }
+      } else {
+        // Inserted or changed
+        merged.add(updatedItem);
+        changedEntries.add(new IndexEntry(parentId, i, updatedItem));
       }
-      if (parentId != null) {
-        break;
+      keptIds.add(updatedItem.getMediaId());
+    }
+
+    List<String> removedIds = new ArrayList<>();
+    for (MediaBrowserCompat.MediaItem item : previous) {
+      if (!keptIds.contains(item.getMediaId())) {
+        removedIds.add(item.getMediaId());
       }
     }
-    if (listener != null && parentId != null) {
-      listener.onMediaItemsUpdated(parentId);
+
+    if (changedEntries.isEmpty() && removedIds.isEmpty() && merged.size() == previous.size()) {
+      return null;
     }
+
+    Snapshot next = current.copy();
+    next.hierarchy.put(parentId, Collections.unmodifiableList(merged));
+    for (String removedId : removedIds) {
+      IndexEntry entry = next.index.get(removedId);
+      // The same id may have been indexed under another parent since
+      if (entry != null && entry.parentId.equals(parentId)) {
+        next.removeEntry(removedId);
+      }
+    }
+    for (IndexEntry entry : changedEntries) {
+      next.putEntry(entry);
+    }
+    return next;
   }
 
-  public void updateMediaItems(String parentId, List<MediaBrowserCompat.MediaItem> updatedItems, boolean replace) {
-    if (replace) {
-      // Replace all existing items with the new list
-      mediaItemsHierarchy.put(parentId, updatedItems);
-    } else {
-      // Update existing items and add new ones
-      List<MediaBrowserCompat.MediaItem> children = mediaItemsHierarchy.get(parentId);
-      if (children == null) {
-        children = new ArrayList<>();
-        mediaItemsHierarchy.put(parentId, children);
-      }
-      Map<String, MediaBrowserCompat.MediaItem> updatedItemsMap = new HashMap<>();
-      for (MediaBrowserCompat.MediaItem updatedItem : updatedItems) {
-        updatedItemsMap.put(updatedItem.getMediaId(), updatedItem);
-      }
-      for (int i = 0; i < children.size(); i++) {
-        MediaBrowserCompat.MediaItem currentItem = children.get(i);
-        MediaBrowserCompat.MediaItem updatedItem = updatedItemsMap.get(currentItem.getMediaId());
-        if (updatedItem != null) {
-          // Replace existing item
-          children.set(i, updatedItem);
-          updatedItemsMap.remove(currentItem.getMediaId());  // Item has been updated, so remove it from the map
+  // The next snapshot, or null if nothing differs
+  private static Snapshot mergeChildren(Snapshot current, String parentId,
+                                       List<MediaBrowserCompat.MediaItem> previous,
+                                       List<MediaBrowserCompat.MediaItem> updatedItems) {
+    List<MediaBrowserCompat.MediaItem> updated = new ArrayList<>(previous);
+    List<IndexEntry> replaced = new ArrayList<>();
+    int firstAppended = updated.size();
+    for (MediaBrowserCompat.MediaItem updatedItem : updatedItems) {
+      IndexEntry entry = current.index.get(updatedItem.getMediaId());
+      if (entry != null && entry.parentId.equals(parentId)) {
+        if (entry.sameContent(updatedItem)) {
+          continue;
         }
+        // Replace existing item
+        updated.set(entry.position, updatedItem);
+        replaced.add(new IndexEntry(parentId, entry.position, updatedItem));
+      } else {
+        // Add any new items that were not in the original list
+        updated.add(updatedItem);
       }
-      // Add any new items that were not in the original list
-      children.addAll(updatedItemsMap.values());
     }
-    if (listener != null) {
-      listener.onMediaItemsUpdated(parentId);
+
+    if (replaced.isEmpty() && updated.size() == firstAppended) {
+      return null;
+    }
+
+    Snapshot next = current.copy();
+    List<MediaBrowserCompat.MediaItem> children = Collections.unmodifiableList(updated);
+    next.hierarchy.put(parentId, children);
+    for (IndexEntry entry : replaced) {
+      next.putEntry(entry);
+    }
+    next.reindexChildren(parentId, children, firstAppended);
+    return next;
+  }
+
+  public void setNotificationWindowMs(long windowMs) {
+    changeDispatcher.setWindowMs(windowMs);
+  }
+
+  public void flushNotifications() {
+    changeDispatcher.flush();
+  }
+
+  private void notifyMediaItemsUpdated(String parentId) {
+    changeDispatcher.markDirty(parentId);
+    schedulePersist();
+  }
+
+  // Call with the write lock held. Edits apply on top of the restored tree, so it becomes the live one.
+  private Snapshot adoptRestored() {
+    MediaHierarchySnapshot restored = this.restored;
+    if (restored == null) {
+      return snapshot;
+    }
+    Snapshot next = new Snapshot();
+    for (Map.Entry<String, List<MediaBrowserCompat.MediaItem>> entry : restored.hydrate().entrySet()) {
+      next.hierarchy.put(entry.getKey(), entry.getValue());
+      next.reindexChildren(entry.getKey(), entry.getValue(), 0);
+    }
+    if (rootId == null) {
+      rootId = restored.getRootId();
+    }
+    snapshot = next;
+    this.restored = null;
+    return next;
+  }
+
+  private void schedulePersist() {
+    Handler handler;
+    synchronized (writeLock) {
+      handler = persistHandler;
+    }
+    if (handler != null) {
+      handler.removeCallbacks(persistRunnable);
+      handler.postDelayed(persistRunnable, PERSIST_DELAY_MS);
+    }
+  }
+
+  private void persistSnapshot() {
+    String rootId = this.rootId;
+    if (rootId == null) {
+      return;
+    }
+    // Published snapshots never change, a write racing this one just schedules another pass
+    try {
+      MediaHierarchySnapshot.write(snapshotFile, rootId, snapshot.hierarchy);
+    } catch (IOException e) {
+      Log.w(TAG, "Could not persist the media hierarchy", e);
+    }
+  }
+
+  public long getIconBitmapBytes() {
+    return snapshot.iconBitmapBytes;
+  }
+
+  private static List<MediaBrowserCompat.MediaItem> freeze(List<MediaBrowserCompat.MediaItem> items) {
+    return Collections.unmodifiableList(new ArrayList<>(items));
+  }
+
+  // Only changed by the writer building it, never after it is published
+  private static final class Snapshot {
+    final Map<String, List<MediaBrowserCompat.MediaItem>> hierarchy;
+
+    // Secondary index so lookups, deletes and single item updates don't walk the whole hierarchy
+    final Map<String, IndexEntry> index;
+
+    // Shared with the snapshots built from this one and updated while the next is built, so a search
+    // may briefly rank ids the published snapshot doesn't have yet. Results are resolved through index.
+    final MediaSearchIndex searchIndex;
+
+    // Bytes of distinct icon bitmaps embedded in indexed items.
+    // Items sharing cached artwork hold the same Bitmap, so it is counted once.
+    long iconBitmapBytes;
+    private final Map<Bitmap, Integer> iconBitmapRefs;
+
+    Snapshot() {
+      hierarchy = new HashMap<>();
+      index = new HashMap<>();
+      searchIndex = new MediaSearchIndex();
+      iconBitmapRefs = new IdentityHashMap<>();
+    }
+
+    private Snapshot(Snapshot from) {
+      hierarchy = new HashMap<>(from.hierarchy);
+      index = new HashMap<>(from.index);
+      searchIndex = from.searchIndex;
+      iconBitmapBytes = from.iconBitmapBytes;
+      iconBitmapRefs = new IdentityHashMap<>(from.iconBitmapRefs);
+    }
+
+    // A private copy for the next writer, child lists and entries are immutable and shared
+    Snapshot copy() {
+      return new Snapshot(this);
+    }
+
+    void indexItem(String parentId, MediaBrowserCompat.MediaItem item, int position) {
+      putEntry(new IndexEntry(parentId, position, item));
+    }
+
+    void putEntry(IndexEntry entry) {
+      IndexEntry previous = index.put(entry.item.getMediaId(), entry);
+      searchIndex.add(entry.item);
+      retainIcon(entry.item);
+      if (previous != null) {
+        releaseIcon(previous.item);
+      }
+    }
+
+    IndexEntry removeEntry(String itemId) {
+      IndexEntry previous = index.remove(itemId);
+      if (previous != null) {
+        searchIndex.remove(itemId);
+        releaseIcon(previous.item);
+      }
+      return previous;
+    }
+
+    private void retainIcon(MediaBrowserCompat.MediaItem item) {
+      Bitmap iconBitmap = item.getDescription().getIconBitmap();
+      if (iconBitmap != null) {
+        Integer refs = iconBitmapRefs.get(iconBitmap);
+        if (refs == null) {
+          iconBitmapBytes += iconBitmap.getByteCount();
+        }
+        iconBitmapRefs.put(iconBitmap, refs == null ? 1 : refs + 1);
+      }
+    }
+
+    private void releaseIcon(MediaBrowserCompat.MediaItem item) {
+      Bitmap iconBitmap = item.getDescription().getIconBitmap();
+      Integer refs = iconBitmap != null ? iconBitmapRefs.get(iconBitmap) : null;
+      if (refs == null) {
+        return;
+      }
+      if (refs == 1) {
+        iconBitmapRefs.remove(iconBitmap);
+        iconBitmapBytes -= iconBitmap.getByteCount();
+      } else {
+        iconBitmapRefs.put(iconBitmap, refs - 1);
+      }
+    }
+
+    void reindexChildren(String parentId, List<MediaBrowserCompat.MediaItem> children, int fromPosition) {
+      for (int i = fromPosition; i < children.size(); i++) {
+        indexItem(parentId, children.get(i), i);
+      }
+    }
+  }
+
+  private static final class IndexEntry {
+    final String parentId;
+    final int position;
+    final MediaBrowserCompat.MediaItem item;
+
+    // Computed on first use, only ever by writers
+    private int contentHash;
+    private boolean hashed;
+
+    // Computed on first use by readers, racing readers just compute the same value
+    private volatile int parcelSize = -1;
+
+    IndexEntry(String parentId, int position, MediaBrowserCompat.MediaItem item) {
+      this.parentId = parentId;
+      this.position = position;
+      this.item = item;
+    }
+
+    boolean sameContent(MediaBrowserCompat.MediaItem other) {
+      if (item == other) {
+        return true;
+      }
+      if (!hashed) {
+        contentHash = MediaBrowserUtils.contentHash(item);
+        hashed = true;
+      }
+      return contentHash == MediaBrowserUtils.contentHash(other) && MediaBrowserUtils.sameContent(item, other);
     }
+
+    int parcelSize() {
+      int size = parcelSize;
+      if (size < 0) {
+        parcelSize = size = MediaBrowserUtils.parcelSize(item);
+      }
+      return size;
+    }
+  }
+
+  public interface MediaItemPatch {
+    // Runs under the store's write lock, return null to leave the item untouched
+    MediaBrowserCompat.MediaItem apply(MediaBrowserCompat.MediaItem current);
   }
 
   public interface MediaItemsUpdateListener {
     void onMediaItemsUpdated(String parentId);
   }
 
-  private MediaItemsUpdateListener listener;
+  private volatile MediaItemsUpdateListener listener;
 
   public void setListener(MediaItemsUpdateListener listener) {
     this.listener = listener;
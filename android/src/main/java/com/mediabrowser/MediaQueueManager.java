@@ -0,0 +1,275 @@
+package com.mediabrowser;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+
+import androidx.media.utils.MediaConstants;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+// Owns the session queue, so skipping through it is answered natively and JS only hears which item to play.
+// Long queues are published as a window around the current item; queue ids are absolute positions.
+public class MediaQueueManager {
+  public static final int DEFAULT_WINDOW_SIZE = 50;
+
+  private static MediaQueueManager instance;
+
+  private Context context;
+
+  // Guarded by this, like everything below
+  private List<String> mediaIds = Collections.emptyList();
+
+  private Map<String, Integer> positions = Collections.emptyMap();
+
+  private int currentIndex = -1;
+
+  private int windowSize = DEFAULT_WINDOW_SIZE;
+
+  private int publishedFrom = -1;
+
+  private int publishedTo = -1;
+
+  private MediaQueueManager() { }
+
+  public static synchronized MediaQueueManager getInstance() {
+    if (instance == null) {
+      instance = new MediaQueueManager();
+    }
+    return instance;
+  }
+
+  public synchronized void setWindowSize(int windowSize) {
+    this.windowSize = windowSize > 0 ? windowSize : DEFAULT_WINDOW_SIZE;
+    publishedFrom = publishedTo = -1;
+    if (context != null) {
+      publishWindow();
+    }
+  }
+
+  public void setQueue(Context context, List<String> mediaIds, int currentIndex, CharSequence title) {
+    synchronized (this) {
+      this.context = context.getApplicationContext();
+      this.mediaIds = new ArrayList<>(mediaIds);
+      Map<String, Integer> positions = new HashMap<>();
+      for (int i = mediaIds.size() - 1; i >= 0; i--) {
+        // The first occurrence wins for items queued twice
+        positions.put(mediaIds.get(i), i);
+      }
+      this.positions = positions;
+      this.currentIndex = mediaIds.isEmpty() ? -1 : Math.max(0, Math.min(currentIndex, mediaIds.size() - 1));
+      publishedFrom = publishedTo = -1;
+
+      MediaSessionCompat session = MediaSessionSingleton.getInstance(this.context);
+      session.setQueueTitle(title);
+      publishWindow();
+      publishMetadata();
+    }
+    // Outside our lock, the publisher asks us for the position under its own
+    PlaybackStatePublisher.getInstance().onQueuePositionChanged(context);
+  }
+
+  public synchronized boolean hasQueue() {
+    return !mediaIds.isEmpty();
+  }
+
+  public synchronized int getCurrentIndex() {
+    return currentIndex;
+  }
+
+  public synchronized String getCurrentMediaId() {
+    return currentIndex >= 0 ? mediaIds.get(currentIndex) : null;
+  }
+
+  public synchronized boolean hasNext() {
+    return currentIndex >= 0 && currentIndex < mediaIds.size() - 1;
+  }
+
+  public synchronized boolean hasPrevious() {
+    return currentIndex > 0;
+  }
+
+  public boolean skipToNext() {
+    int index;
+    synchronized (this) {
+      if (!hasNext()) {
+        return false;
+      }
+      index = currentIndex + 1;
+    }
+    return skipToIndex(index);
+  }
+
+  public boolean skipToPrevious() {
+    int index;
+    synchronized (this) {
+      if (!hasPrevious()) {
+        return false;
+      }
+      index = currentIndex - 1;
+    }
+    return skipToIndex(index);
+  }
+
+  public boolean skipToQueueItem(long queueId) {
+    return skipToIndex((int) queueId);
+  }
+
+  // Shows an item picked from the browse tree right away, and keeps the queue position in step with it.
+  // An item outside the queue leaves no current position, so skips go to JS until it sets a new queue.
+  public void onMediaItemSelected(Context context, String mediaId) {
+    synchronized (this) {
+      this.context = context.getApplicationContext();
+      Integer index = positions.get(mediaId);
+      if (index != null) {
+        currentIndex = index;
+        publishWindow();
+        publishMetadata();
+      } else {
+        currentIndex = -1;
+        MediaBrowserCompat.MediaItem item = MediaItemsStore.getInstance().getMediaItemById(mediaId);
+        if (item != null) {
+          MediaSessionCompat session = MediaSessionSingleton.getInstance(this.context);
+          session.setMetadata(buildMetadata(item));
+          session.setActive(true);
+        }
+      }
+    }
+    PlaybackStatePublisher.getInstance().onQueuePositionChanged(context);
+  }
+
+  private boolean skipToIndex(int index) {
+    final String mediaId;
+    final Context context;
+    synchronized (this) {
+      if (index < 0 || index >= mediaIds.size()) {
+        return false;
+      }
+      currentIndex = index;
+      mediaId = mediaIds.get(index);
+      context = this.context;
+      publishWindow();
+      publishMetadata();
+    }
+    PlaybackStatePublisher.getInstance().onQueuePositionChanged(context);
+    // The car already shows the new item, JS just has to start playing it. The item is taken as
+    // it is now, the queue may only drain after JS has replaced the hierarchy.
+    MediaBrowserCompat.MediaItem mediaItem = MediaItemsStore.getInstance().getMediaItemById(mediaId);
+    if (mediaItem == null) {
+      return true;
+    }
+    MediaEventDispatcher.getInstance().emit("onMediaItemSelected", () -> {
+      Bundle event = MediaBrowserUtils.createMediaItemEvent(mediaItem);
+      event.putInt("queueIndex", index);
+      return event;
+    });
+    return true;
+  }
+
+  // Call with this held
+  private void publishWindow() {
+    MediaSessionCompat session = MediaSessionSingleton.getInstance(context);
+    if (mediaIds.isEmpty()) {
+      session.setQueue(null);
+      return;
+    }
+    // Republish only once the current item gets near the edge of what clients have
+    int margin = windowSize / 4;
+    if (publishedFrom >= 0 && currentIndex >= publishedFrom + margin && currentIndex <= publishedTo - margin) {
+      return;
+    }
+    int from = Math.max(0, Math.min(currentIndex - windowSize / 2, mediaIds.size() - windowSize));
+    int to = Math.min(mediaIds.size() - 1, from + windowSize - 1);
+    if (from == publishedFrom && to == publishedTo) {
+      return;
+    }
+
+    MediaItemsStore store = MediaItemsStore.getInstance();
+    List<MediaSessionCompat.QueueItem> queue = new ArrayList<>(to - from + 1);
+    for (int i = from; i <= to; i++) {
+      MediaBrowserCompat.MediaItem item = store.getMediaItemById(mediaIds.get(i));
+      MediaDescriptionCompat description = item != null
+        ? forQueue(item.getDescription())
+        : new MediaDescriptionCompat.Builder().setMediaId(mediaIds.get(i)).build();
+      queue.add(new MediaSessionCompat.QueueItem(description, i));
+    }
+    session.setQueue(queue);
+    publishedFrom = from;
+    publishedTo = to;
+  }
+
+  // Call with this held
+  private void publishMetadata() {
+    if (currentIndex < 0) {
+      return;
+    }
+    MediaSessionCompat session = MediaSessionSingleton.getInstance(context);
+    MediaBrowserCompat.MediaItem item = MediaItemsStore.getInstance().getMediaItemById(mediaIds.get(currentIndex));
+    if (item != null) {
+      session.setMetadata(buildMetadata(item));
+    }
+    session.setActive(true);
+  }
+
+  public static MediaMetadataCompat buildMetadata(MediaBrowserCompat.MediaItem item) {
+    MediaDescriptionCompat description = item.getDescription();
+    MediaMetadataCompat.Builder metadata = new MediaMetadataCompat.Builder()
+      .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, description.getMediaId());
+    if (description.getTitle() != null) {
+      metadata.putText(MediaMetadataCompat.METADATA_KEY_TITLE, description.getTitle());
+      metadata.putText(MediaMetadataCompat.METADATA_KEY_DISPLAY_TITLE, description.getTitle());
+    }
+    if (description.getSubtitle() != null) {
+      metadata.putText(MediaMetadataCompat.METADATA_KEY_ARTIST, description.getSubtitle());
+      metadata.putText(MediaMetadataCompat.METADATA_KEY_DISPLAY_SUBTITLE, description.getSubtitle());
+    }
+    Uri iconUri = sessionIconUri(description.getIconUri());
+    if (iconUri != null) {
+      metadata.putString(MediaMetadataCompat.METADATA_KEY_DISPLAY_ICON_URI, iconUri.toString());
+      metadata.putString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI, iconUri.toString());
+    }
+    if (description.getIconBitmap() != null) {
+      metadata.putBitmap(MediaMetadataCompat.METADATA_KEY_DISPLAY_ICON, description.getIconBitmap());
+    }
+    Bundle extras = description.getExtras();
+    if (extras != null && extras.containsKey(MediaConstants.METADATA_KEY_IS_EXPLICIT)) {
+      metadata.putLong(MediaConstants.METADATA_KEY_IS_EXPLICIT, extras.getLong(MediaConstants.METADATA_KEY_IS_EXPLICIT));
+    }
+    return metadata.build();
+  }
+
+  // Session readers were never granted our provider, they get the remote uri
+  private static Uri sessionIconUri(Uri iconUri) {
+    if (iconUri != null && MediaArtworkContentProvider.CONTENT_PROVIDER_AUTHORITY.equals(iconUri.getAuthority())) {
+      Uri remoteUri = MediaArtworkContentProvider.resolveRemoteUri(iconUri);
+      return remoteUri != null ? remoteUri : iconUri;
+    }
+    return iconUri;
+  }
+
+  // Queue items all cross the binder together, icons go by uri, and by a uri any session reader can open
+  private static MediaDescriptionCompat forQueue(MediaDescriptionCompat description) {
+    Uri iconUri = sessionIconUri(description.getIconUri());
+    if (description.getIconBitmap() == null && Objects.equals(iconUri, description.getIconUri())) {
+      return description;
+    }
+    return new MediaDescriptionCompat.Builder()
+      .setMediaId(description.getMediaId())
+      .setTitle(description.getTitle())
+      .setSubtitle(description.getSubtitle())
+      .setDescription(description.getDescription())
+      .setIconUri(iconUri)
+      .setMediaUri(description.getMediaUri())
+      .setExtras(description.getExtras())
+      .build();
+  }
+}
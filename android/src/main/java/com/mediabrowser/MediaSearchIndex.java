@@ -0,0 +1,187 @@
+package com.mediabrowser;
+
+import android.os.Bundle;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+
+import androidx.media.utils.MediaConstants;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+// Token index over titles, subtitles and group titles. Kept up to date by the store as items are
+// indexed, so searching never walks the hierarchy.
+public class MediaSearchIndex {
+  private static final int TITLE_WEIGHT = 4;
+  private static final int SUBTITLE_WEIGHT = 2;
+  private static final int GROUP_TITLE_WEIGHT = 1;
+
+  // A whole word beats a word that only starts with the query
+  private static final int EXACT_MATCH_BONUS = 2;
+
+  private static final Pattern DIACRITICS = Pattern.compile("\\p{M}+");
+  private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+  // Guarded by this, like everything below
+  private final Map<String, Document> documents = new HashMap<>();
+
+  // token -> itemId -> best field weight of that token in the item
+  private final TreeMap<String, Map<String, Integer>> postings = new TreeMap<>();
+
+  public synchronized void add(MediaBrowserCompat.MediaItem item) {
+    String itemId = item.getMediaId();
+    if (itemId == null) {
+      return;
+    }
+    Document previous = documents.get(itemId);
+    if (previous != null) {
+      if (previous.item == item) {
+        // Only moved
+        return;
+      }
+      removeDocument(itemId, previous);
+    }
+
+    MediaDescriptionCompat description = item.getDescription();
+    Map<String, Integer> weights = new HashMap<>();
+    addTokens(weights, description.getTitle(), TITLE_WEIGHT);
+    addTokens(weights, description.getSubtitle(), SUBTITLE_WEIGHT);
+    Bundle extras = description.getExtras();
+    if (extras != null) {
+      addTokens(weights, extras.getString(MediaConstants.DESCRIPTION_EXTRAS_KEY_CONTENT_STYLE_GROUP_TITLE), GROUP_TITLE_WEIGHT);
+    }
+
+    for (Map.Entry<String, Integer> weight : weights.entrySet()) {
+      Map<String, Integer> items = postings.get(weight.getKey());
+      if (items == null) {
+        items = new HashMap<>();
+        postings.put(weight.getKey(), items);
+      }
+      items.put(itemId, weight.getValue());
+    }
+    documents.put(itemId, new Document(item, weights.keySet()));
+  }
+
+  public synchronized void remove(String itemId) {
+    Document previous = documents.remove(itemId);
+    if (previous != null) {
+      removeDocument(itemId, previous);
+    }
+  }
+
+  // Ids of the best matches, best first. Each word of the query matches as a prefix, items
+  // matching more of the words rank first, so a stray word in a spoken query doesn't empty the results.
+  public synchronized List<String> search(String query, int limit) {
+    List<String> queryTokens = new ArrayList<>(tokenize(query));
+    if (queryTokens.isEmpty() || limit <= 0) {
+      return Collections.emptyList();
+    }
+
+    Map<String, int[]> matches = new HashMap<>(); // itemId -> { matched words, score }
+    for (String queryToken : queryTokens) {
+      Map<String, Integer> best = new HashMap<>();
+      SortedMap<String, Map<String, Integer>> prefixed = postings.subMap(queryToken, queryToken + Character.MAX_VALUE);
+      for (Map.Entry<String, Map<String, Integer>> posting : prefixed.entrySet()) {
+        boolean exact = posting.getKey().equals(queryToken);
+        for (Map.Entry<String, Integer> item : posting.getValue().entrySet()) {
+          int score = item.getValue() * (exact ? EXACT_MATCH_BONUS : 1);
+          Integer current = best.get(item.getKey());
+          if (current == null || current < score) {
+            best.put(item.getKey(), score);
+          }
+        }
+      }
+      for (Map.Entry<String, Integer> item : best.entrySet()) {
+        int[] match = matches.get(item.getKey());
+        if (match == null) {
+          match = new int[2];
+          matches.put(item.getKey(), match);
+        }
+        match[0]++;
+        match[1] += item.getValue();
+      }
+    }
+
+    List<Map.Entry<String, int[]>> ranked = new ArrayList<>(matches.entrySet());
+    Collections.sort(ranked, (a, b) -> {
+      if (a.getValue()[0] != b.getValue()[0]) {
+        return b.getValue()[0] - a.getValue()[0];
+      }
+      if (a.getValue()[1] != b.getValue()[1]) {
+        return b.getValue()[1] - a.getValue()[1];
+      }
+      // Shorter titles are closer to what was asked for
+      return titleLength(a.getKey()) - titleLength(b.getKey());
+    });
+
+    List<String> results = new ArrayList<>(Math.min(limit, ranked.size()));
+    for (Map.Entry<String, int[]> match : ranked) {
+      if (results.size() == limit) {
+        break;
+      }
+      results.add(match.getKey());
+    }
+    return results;
+  }
+
+  public static Set<String> tokenize(CharSequence text) {
+    Set<String> tokens = new LinkedHashSet<>();
+    if (text == null) {
+      return tokens;
+    }
+    // "Beyoncé" matches "beyonce"
+    String normalized = DIACRITICS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("");
+    for (String token : SEPARATORS.split(normalized.toLowerCase(Locale.ROOT))) {
+      if (!token.isEmpty()) {
+        tokens.add(token);
+      }
+    }
+    return tokens;
+  }
+
+  private static void addTokens(Map<String, Integer> weights, CharSequence text, int weight) {
+    for (String token : tokenize(text)) {
+      Integer current = weights.get(token);
+      if (current == null || current < weight) {
+        weights.put(token, weight);
+      }
+    }
+  }
+
+  private void removeDocument(String itemId, Document document) {
+    for (String token : document.tokens) {
+      Map<String, Integer> items = postings.get(token);
+      if (items != null) {
+        items.remove(itemId);
+        if (items.isEmpty()) {
+          postings.remove(token);
+        }
+      }
+    }
+  }
+
+  private int titleLength(String itemId) {
+    CharSequence title = documents.get(itemId).item.getDescription().getTitle();
+    return title != null ? title.length() : Integer.MAX_VALUE;
+  }
+
+  private static final class Document {
+    final MediaBrowserCompat.MediaItem item;
+    final Set<String> tokens;
+
+    Document(MediaBrowserCompat.MediaItem item, Set<String> tokens) {
+      this.item = item;
+      this.tokens = tokens;
+    }
+  }
+}
@@ -0,0 +1,162 @@
+package com.mediabrowser;
+
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.support.v4.media.MediaBrowserCompat;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Keeps a child list under what one binder transaction can carry. Past the budget the car gets
+// a TransactionTooLargeException on our side and silently shows nothing.
+public class ParcelSizeBudget {
+  private static final String TAG = "ParcelSizeBudget";
+
+  // The binder buffer is 1MB, shared by every transaction in flight for the process
+  public static final int DEFAULT_BUDGET_BYTES = 500 * 1024;
+
+  private static ParcelSizeBudget instance;
+
+  private volatile int budgetBytes = DEFAULT_BUDGET_BYTES;
+
+  // Guarded by this
+  private long overBudgetLists;
+  private long truncatedLists;
+  private long droppedItems;
+  private long strippedIcons;
+  private long strippedInfo;
+  private long oversizedPages;
+
+  private ParcelSizeBudget() { }
+
+  public static synchronized ParcelSizeBudget getInstance() {
+    if (instance == null) {
+      instance = new ParcelSizeBudget();
+    }
+    return instance;
+  }
+
+  public void setBudgetBytes(int budgetBytes) {
+    this.budgetBytes = budgetBytes > 0 ? budgetBytes : DEFAULT_BUDGET_BYTES;
+  }
+
+  public synchronized WritableMap getStats() {
+    WritableMap stats = Arguments.createMap();
+    stats.putInt("budgetBytes", budgetBytes);
+    stats.putDouble("overBudgetLists", overBudgetLists);
+    stats.putDouble("truncatedLists", truncatedLists);
+    stats.putDouble("droppedItems", droppedItems);
+    stats.putDouble("strippedIcons", strippedIcons);
+    stats.putDouble("strippedInfo", strippedInfo);
+    stats.putDouble("oversizedPages", oversizedPages);
+    return stats;
+  }
+
+  // A paged list is never cut short: pages are offsets, whatever a page leaves out no other page sends
+  public List<MediaBrowserCompat.MediaItem> apply(String parentId, List<MediaBrowserCompat.MediaItem> items, boolean paged) {
+    MediaItemsStore store = MediaItemsStore.getInstance();
+    int budget = budgetBytes;
+    int[] sizes = new int[items.size()];
+    long total = 0;
+    for (int i = 0; i < items.size(); i++) {
+      sizes[i] = store.getParcelSize(items.get(i));
+      total += sizes[i];
+    }
+    if (total <= budget) {
+      return items;
+    }
+
+    // Icons first, largest first: the item is still there and the car can fall back to the icon uri
+    List<Integer> withIcons = new ArrayList<>();
+    for (int i = 0; i < items.size(); i++) {
+      if (items.get(i).getDescription().getIconBitmap() != null) {
+        withIcons.add(i);
+      }
+    }
+    Collections.sort(withIcons, (a, b) -> Integer.compare(iconBytes(items.get(b)), iconBytes(items.get(a))));
+
+    List<MediaBrowserCompat.MediaItem> result = new ArrayList<>(items);
+    int strippedIcons = 0;
+    for (int i : withIcons) {
+      if (total <= budget) {
+        break;
+      }
+      MediaBrowserCompat.MediaItem stripped = MediaBrowserUtils.withIconBitmap(items.get(i), null);
+      int strippedSize = MediaBrowserUtils.parcelSize(stripped);
+      total -= sizes[i] - strippedSize;
+      sizes[i] = strippedSize;
+      result.set(i, stripped);
+      strippedIcons++;
+    }
+
+    // Then the app data JS attached, the car doesn't read it
+    int strippedInfo = 0;
+    if (total > budget) {
+      List<Integer> bySize = new ArrayList<>();
+      for (int i = 0; i < items.size(); i++) {
+        if (hasInfo(result.get(i))) {
+          bySize.add(i);
+        }
+      }
+      Collections.sort(bySize, (a, b) -> Integer.compare(sizes[b], sizes[a]));
+      for (int i : bySize) {
+        if (total <= budget) {
+          break;
+        }
+        MediaBrowserCompat.MediaItem stripped = MediaBrowserUtils.withoutExtra(result.get(i), BrowserClientProfile.INFO_EXTRA);
+        int strippedSize = MediaBrowserUtils.parcelSize(stripped);
+        total -= sizes[i] - strippedSize;
+        sizes[i] = strippedSize;
+        result.set(i, stripped);
+        strippedInfo++;
+      }
+    }
+
+    if (total > budget && paged) {
+      Log.e(TAG, "Page of " + parentId + " is still ~" + total + " bytes, over the " + budget
+        + " byte budget, after stripping icons and info. Use a smaller page size.");
+    } else if (total > budget) {
+      // An unpaged client can't ask for the rest, send the part that fits
+      long kept = 0;
+      int count = 0;
+      while (count < sizes.length && kept + sizes[count] <= budget) {
+        kept += sizes[count];
+        count++;
+      }
+      result = result.subList(0, count);
+      total = kept;
+    }
+
+    Log.w(TAG, "Children of " + parentId + " over the " + budget + " byte budget: sending " + result.size()
+      + " of " + items.size() + " items, " + strippedIcons + " without icons, " + strippedInfo + " without info, ~"
+      + total + " bytes");
+    synchronized (this) {
+      overBudgetLists++;
+      if (result.size() < items.size()) {
+        truncatedLists++;
+        droppedItems += items.size() - result.size();
+      }
+      this.strippedIcons += strippedIcons;
+      this.strippedInfo += strippedInfo;
+      if (total > budget) {
+        oversizedPages++;
+      }
+    }
+    return result;
+  }
+
+  private static boolean hasInfo(MediaBrowserCompat.MediaItem item) {
+    Bundle extras = item.getDescription().getExtras();
+    return extras != null && extras.containsKey(BrowserClientProfile.INFO_EXTRA);
+  }
+
+  private static int iconBytes(MediaBrowserCompat.MediaItem item) {
+    Bitmap iconBitmap = item.getDescription().getIconBitmap();
+    return iconBitmap != null ? iconBitmap.getByteCount() : 0;
+  }
+}
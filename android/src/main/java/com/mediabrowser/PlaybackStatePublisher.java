@@ -0,0 +1,131 @@
+package com.mediabrowser;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+import android.text.TextUtils;
+
+// Publishes JS playback reports to the session only when clients couldn't work them out themselves.
+// While playing, clients extrapolate the position from the last state and its speed, so a steady
+// stream of position reports costs no binder traffic until it drifts from that.
+public class PlaybackStatePublisher {
+  public static final long DEFAULT_DRIFT_THRESHOLD_MS = 1000;
+
+  // Every one of these is answered natively or forwarded to JS through onPlaybackControl
+  private static final long BASE_ACTIONS = PlaybackStateCompat.ACTION_PLAY
+    | PlaybackStateCompat.ACTION_PAUSE
+    | PlaybackStateCompat.ACTION_PLAY_PAUSE
+    | PlaybackStateCompat.ACTION_STOP
+    | PlaybackStateCompat.ACTION_SEEK_TO
+    | PlaybackStateCompat.ACTION_SKIP_TO_NEXT
+    | PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS
+    | PlaybackStateCompat.ACTION_PLAY_FROM_MEDIA_ID
+    | PlaybackStateCompat.ACTION_PLAY_FROM_SEARCH;
+
+  private static PlaybackStatePublisher instance;
+
+  // Guarded by this, like everything below
+  private long driftThresholdMs = DEFAULT_DRIFT_THRESHOLD_MS;
+
+  private PlaybackStateCompat published;
+
+  private long publishedCount;
+
+  private long skipped;
+
+  private PlaybackStatePublisher() { }
+
+  public static synchronized PlaybackStatePublisher getInstance() {
+    if (instance == null) {
+      instance = new PlaybackStatePublisher();
+    }
+    return instance;
+  }
+
+  public synchronized void setDriftThresholdMs(long driftThresholdMs) {
+    this.driftThresholdMs = driftThresholdMs >= 0 ? driftThresholdMs : DEFAULT_DRIFT_THRESHOLD_MS;
+  }
+
+  // Advertises the supported actions before anything has played
+  public synchronized void publishInitialState(MediaSessionCompat session) {
+    if (published == null) {
+      publish(session, PlaybackStateCompat.STATE_NONE, 0, 0, 0, null);
+    }
+  }
+
+  public synchronized boolean update(Context context, int state, long positionMs, float speed, long bufferedPositionMs, String errorMessage) {
+    if (published != null && !shouldPublish(state, positionMs, speed, errorMessage)) {
+      skipped++;
+      return false;
+    }
+    publish(MediaSessionSingleton.getInstance(context), state, positionMs, speed, bufferedPositionMs, errorMessage);
+    return true;
+  }
+
+  // The queue position moved natively, clients learn the active item from the playback state.
+  // Don't call with the queue manager locked.
+  public synchronized void onQueuePositionChanged(Context context) {
+    if (published == null || published.getActiveQueueItemId() == activeQueueItemId()) {
+      return;
+    }
+    CharSequence errorMessage = published.getErrorMessage();
+    publish(MediaSessionSingleton.getInstance(context), published.getState(), extrapolatedPosition(),
+      published.getPlaybackSpeed(), published.getBufferedPosition(), errorMessage != null ? errorMessage.toString() : null);
+  }
+
+  public synchronized long getPublishedCount() {
+    return publishedCount;
+  }
+
+  public synchronized long getSkippedCount() {
+    return skipped;
+  }
+
+  private boolean shouldPublish(int state, long positionMs, float speed, String errorMessage) {
+    if (state != published.getState()
+      || speed != published.getPlaybackSpeed()
+      || published.getActions() != actions()
+      || published.getActiveQueueItemId() != activeQueueItemId()
+      || !TextUtils.equals(errorMessage, published.getErrorMessage())) {
+      return true;
+    }
+    return Math.abs(positionMs - extrapolatedPosition()) > driftThresholdMs;
+  }
+
+  // Where clients think playback is, the same way PlaybackStateCompat.getPosition is extrapolated
+  private long extrapolatedPosition() {
+    if (published.getState() != PlaybackStateCompat.STATE_PLAYING) {
+      return published.getPosition();
+    }
+    long elapsed = SystemClock.elapsedRealtime() - published.getLastPositionUpdateTime();
+    return published.getPosition() + (long) (elapsed * published.getPlaybackSpeed());
+  }
+
+  private void publish(MediaSessionCompat session, int state, long positionMs, float speed, long bufferedPositionMs, String errorMessage) {
+    PlaybackStateCompat.Builder builder = new PlaybackStateCompat.Builder()
+      .setActions(actions())
+      .setActiveQueueItemId(activeQueueItemId())
+      .setBufferedPosition(bufferedPositionMs)
+      .setState(state, positionMs, speed, SystemClock.elapsedRealtime());
+    if (errorMessage != null) {
+      builder.setErrorMessage(PlaybackStateCompat.ERROR_CODE_APP_ERROR, errorMessage);
+    }
+    published = builder.build();
+    session.setPlaybackState(published);
+    publishedCount++;
+  }
+
+  private static long actions() {
+    return MediaQueueManager.getInstance().hasQueue()
+      ? BASE_ACTIONS | PlaybackStateCompat.ACTION_SKIP_TO_QUEUE_ITEM
+      : BASE_ACTIONS;
+  }
+
+  private static long activeQueueItemId() {
+    MediaQueueManager queueManager = MediaQueueManager.getInstance();
+    return queueManager.hasQueue()
+      ? queueManager.getCurrentIndex()
+      : MediaSessionCompat.QueueItem.UNKNOWN_ID;
+  }
+}
@@ -0,0 +1,121 @@
+package com.mediabrowser;
+
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.util.Log;
+
+import com.facebook.react.bridge.JavaOnlyArray;
+import com.facebook.react.bridge.JavaOnlyMap;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+// Checks the array shapes toBundle keeps, and times it against the convertReadableMapToJson path it
+// replaced. Timings are only logged: they vary too much between machines to assert on. The timing run
+// is skipped unless the mediabrowser.benchmarks system property is true.
+@RunWith(RobolectricTestRunner.class)
+public class ExtrasConversionBenchmarkTest {
+  private static final String TAG = "ExtrasConversionBenchmark";
+  private static final int ITEM_COUNT = 2000;
+  private static final int WARMUP_ROUNDS = 3;
+  private static final int ROUNDS = 10;
+
+  @Test
+  public void keepsEveryArrayShape() {
+    JavaOnlyMap info = JavaOnlyMap.of(
+      "numbers", JavaOnlyArray.of(1.0, 2.5),
+      "flags", JavaOnlyArray.of(true, false),
+      "names", JavaOnlyArray.of("a", "b"),
+      "empty", new JavaOnlyArray(),
+      "chapters", JavaOnlyArray.of(JavaOnlyMap.of("title", "intro")),
+      "mixed", JavaOnlyArray.of(1.0, "two", true),
+      "withNull", JavaOnlyArray.of("a", null),
+      "nested", JavaOnlyArray.of(JavaOnlyArray.of(1.0), JavaOnlyArray.of("x", null)));
+
+    Bundle bundle = MediaBrowserUtils.toBundle(info, true);
+
+    assertArrayEquals(new double[] { 1.0, 2.5 }, bundle.getDoubleArray("numbers"), 0);
+    assertArrayEquals(new boolean[] { true, false }, bundle.getBooleanArray("flags"));
+    assertArrayEquals(new String[] { "a", "b" }, bundle.getStringArray("names"));
+    assertArrayEquals(new String[0], bundle.getStringArray("empty"));
+    Parcelable[] chapters = bundle.getParcelableArray("chapters");
+    assertNotNull(chapters);
+    assertEquals(1, chapters.length);
+    assertEquals("intro", ((Bundle) chapters[0]).getString("title"));
+
+    Bundle mixed = bundle.getBundle("mixed");
+    assertNotNull(mixed);
+    assertEquals(3, mixed.getInt(MediaBrowserUtils.ARRAY_LENGTH_KEY));
+    assertEquals(1.0, mixed.getDouble("0"), 0);
+    assertEquals("two", mixed.getString("1"));
+    assertTrue(mixed.getBoolean("2"));
+
+    Bundle withNull = bundle.getBundle("withNull");
+    assertNotNull(withNull);
+    assertEquals(2, withNull.getInt(MediaBrowserUtils.ARRAY_LENGTH_KEY));
+    assertEquals("a", withNull.getString("0"));
+    assertTrue(withNull.containsKey("1"));
+    assertNull(withNull.get("1"));
+
+    Bundle nested = bundle.getBundle("nested");
+    assertNotNull(nested);
+    assertEquals(2, nested.getInt(MediaBrowserUtils.ARRAY_LENGTH_KEY));
+    assertArrayEquals(new double[] { 1.0 }, nested.getDoubleArray("0"), 0);
+    Bundle inner = nested.getBundle("1");
+    assertNotNull(inner);
+    assertEquals(2, inner.getInt(MediaBrowserUtils.ARRAY_LENGTH_KEY));
+    assertEquals("x", inner.getString("0"));
+    assertNull(inner.get("1"));
+  }
+
+  @Test
+  public void toBundleAgainstJson() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("mediabrowser.benchmarks"));
+    JavaOnlyMap[] items = new JavaOnlyMap[ITEM_COUNT];
+    for (int i = 0; i < ITEM_COUNT; i++) {
+      items[i] = JavaOnlyMap.of(
+        "duration", (double) (i * 1000),
+        "genre", "genre" + (i % 10),
+        "explicit", i % 2 == 0,
+        "tags", JavaOnlyArray.of("tag" + i, "tag" + (i + 1)),
+        "chapters", JavaOnlyArray.of(JavaOnlyMap.of("start", 0.0, "title", "intro")));
+    }
+
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      timeToBundle(items);
+      timeJson(items);
+    }
+    long bundleNanos = 0;
+    long jsonNanos = 0;
+    for (int i = 0; i < ROUNDS; i++) {
+      bundleNanos += timeToBundle(items);
+      jsonNanos += timeJson(items);
+    }
+    Log.i(TAG, String.format("%d items: toBundle %.2f ms, convertReadableMapToJson %.2f ms per round",
+      ITEM_COUNT, bundleNanos / 1e6 / ROUNDS, jsonNanos / 1e6 / ROUNDS));
+  }
+
+  private static long timeToBundle(JavaOnlyMap[] items) {
+    long start = System.nanoTime();
+    for (JavaOnlyMap item : items) {
+      assertNotNull(MediaBrowserUtils.toBundle(item, true));
+    }
+    return System.nanoTime() - start;
+  }
+
+  private static long timeJson(JavaOnlyMap[] items) throws Exception {
+    long start = System.nanoTime();
+    for (JavaOnlyMap item : items) {
+      assertNotNull(MediaBrowserUtils.convertReadableMapToJson(item).toString());
+    }
+    return System.nanoTime() - start;
+  }
+}
@@ -0,0 +1,106 @@
+package com.mediabrowser;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+// Items restored from a snapshot in a new process must still open their artwork, although the
+// provider's uri map starts out empty there.
+@RunWith(RobolectricTestRunner.class)
+public class MediaHierarchySnapshotArtworkTest {
+  private static final String ROOT_ID = "root";
+  private static final Uri REMOTE_URI = Uri.parse("https://example.com/art/1.jpg");
+  private static final byte[] ARTWORK = { 1, 2, 3, 4, 5 };
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @After
+  public void tearDown() {
+    MediaArtworkContentProvider.setUriMapping(false, MediaArtworkContentProvider.DEFAULT_URI_MAP_SIZE);
+  }
+
+  @Test
+  public void restoredIconOpens() throws Exception {
+    Context context = RuntimeEnvironment.getApplication();
+    cacheArtwork(context, REMOTE_URI, ARTWORK);
+
+    MediaDescriptionCompat description = new MediaDescriptionCompat.Builder()
+      .setMediaId("item")
+      .setIconUri(MediaArtworkContentProvider.mapUri(REMOTE_URI))
+      .build();
+    Map<String, List<MediaBrowserCompat.MediaItem>> hierarchy = new HashMap<>();
+    hierarchy.put(ROOT_ID, Collections.singletonList(
+      new MediaBrowserCompat.MediaItem(description, MediaBrowserCompat.MediaItem.FLAG_PLAYABLE)));
+    File file = folder.newFile("snapshot");
+    MediaHierarchySnapshot.write(file, ROOT_ID, hierarchy);
+
+    forgetMappedUris();
+    MediaHierarchySnapshot snapshot = MediaHierarchySnapshot.open(file);
+    assertNotNull(snapshot);
+    Uri iconUri = snapshot.getChildren(ROOT_ID).get(0).getDescription().getIconUri();
+    assertNotNull(iconUri);
+    assertEquals(MediaArtworkContentProvider.CONTENT_PROVIDER_AUTHORITY, iconUri.getAuthority());
+    assertEquals(REMOTE_URI, MediaArtworkContentProvider.resolveRemoteUri(iconUri));
+
+    MediaArtworkContentProvider provider = Robolectric.setupContentProvider(MediaArtworkContentProvider.class);
+    assertArrayEquals(ARTWORK, read(provider.openFile(iconUri, "r")));
+
+    // Even once the map forgets it again, the path of a mapped uri finds the cached file
+    forgetMappedUris();
+    assertArrayEquals(ARTWORK, read(provider.openFile(iconUri, "r")));
+  }
+
+  private static void cacheArtwork(Context context, Uri remoteUri, byte[] bytes) throws Exception {
+    ArtworkDiskCache cache = ArtworkDiskCache.getInstance(context);
+    String key = ArtworkDiskCache.keyFor(remoteUri);
+    File tmp = cache.newTempFile(key);
+    try (FileOutputStream out = new FileOutputStream(tmp)) {
+      out.write(bytes);
+    }
+    cache.commit(key, tmp);
+  }
+
+  // What a new process starts with
+  private static void forgetMappedUris() {
+    MediaArtworkContentProvider.setUriMapping(false, 1);
+    MediaArtworkContentProvider.mapUri(Uri.parse("https://example.com/other.jpg"));
+    MediaArtworkContentProvider.setUriMapping(false, MediaArtworkContentProvider.DEFAULT_URI_MAP_SIZE);
+  }
+
+  private static byte[] read(ParcelFileDescriptor descriptor) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(descriptor)) {
+      byte[] buffer = new byte[4096];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        bytes.write(buffer, 0, read);
+      }
+    }
+    return bytes.toByteArray();
+  }
+}
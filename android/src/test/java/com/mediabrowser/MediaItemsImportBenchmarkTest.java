@@ -0,0 +1,126 @@
+package com.mediabrowser;
+
+import android.support.v4.media.MediaBrowserCompat;
+import android.util.Log;
+
+import com.facebook.react.bridge.JavaOnlyArray;
+import com.facebook.react.bridge.JavaOnlyMap;
+import com.facebook.react.bridge.ReactApplicationContext;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+// Times setMediaItemsFromJson's streaming parser against the ReadableMap path of setMediaItems, on the
+// same tree, and checks both build the same items. JavaOnlyMaps leave out what the bridge costs to
+// build the ReadableMap in the first place, so the JSON path's real advantage is larger than shown.
+// Timings are only logged: they vary too much between machines to assert on. The timing run is skipped
+// unless the mediabrowser.benchmarks system property is true.
+@RunWith(RobolectricTestRunner.class)
+public class MediaItemsImportBenchmarkTest {
+  private static final String TAG = "MediaItemsImportBenchmark";
+  private static final String ROOT_ID = "root";
+  private static final int CATEGORY_COUNT = 20;
+  private static final int ITEMS_PER_CATEGORY = 100;
+  private static final int WARMUP_ROUNDS = 3;
+  private static final int ROUNDS = 10;
+
+  private MediaBrowserModule module;
+  private JavaOnlyMap tree;
+  private String json;
+
+  @Before
+  public void setUp() throws Exception {
+    module = new MediaBrowserModule(new ReactApplicationContext(RuntimeEnvironment.getApplication()));
+
+    JavaOnlyArray categories = new JavaOnlyArray();
+    for (int c = 0; c < CATEGORY_COUNT; c++) {
+      JavaOnlyArray children = new JavaOnlyArray();
+      for (int i = 0; i < ITEMS_PER_CATEGORY; i++) {
+        JavaOnlyMap info = JavaOnlyMap.of(
+          "duration", (double) (i * 1000),
+          "genre", "genre" + (i % 10),
+          "tags", JavaOnlyArray.of("tag" + i, "tag" + (i + 1)));
+        children.pushMap(JavaOnlyMap.of(
+          "id", "item-" + c + "-" + i,
+          "title", "Item " + i,
+          "subTitle", "Category " + c,
+          "icon", "https://example.com/art/" + c + "/" + i + ".jpg",
+          "playableOrBrowsable", "PLAYABLE",
+          "extras", JavaOnlyMap.of("info", info)));
+      }
+      categories.pushMap(JavaOnlyMap.of(
+        "id", "category-" + c,
+        "title", "Category " + c,
+        "playableOrBrowsable", "BROWSABLE",
+        "extras", new JavaOnlyMap(),
+        "children", children));
+    }
+    tree = JavaOnlyMap.of("id", ROOT_ID, "root", categories);
+    json = MediaBrowserUtils.convertReadableMapToJson(tree).toString();
+  }
+
+  @Test
+  public void bothPathsBuildTheSameItems() throws Exception {
+    Map<String, List<MediaBrowserCompat.MediaItem>> fromMap = importFromMap();
+    MediaItemsJsonParser parser = importFromJson();
+
+    assertEquals(ROOT_ID, parser.getRootId());
+    Map<String, List<MediaBrowserCompat.MediaItem>> fromJson = parser.getHierarchy();
+    assertEquals(CATEGORY_COUNT + 1, fromMap.size());
+    assertEquals(fromMap.keySet(), fromJson.keySet());
+    for (Map.Entry<String, List<MediaBrowserCompat.MediaItem>> entry : fromMap.entrySet()) {
+      List<MediaBrowserCompat.MediaItem> expected = entry.getValue();
+      List<MediaBrowserCompat.MediaItem> actual = fromJson.get(entry.getKey());
+      assertNotNull(actual);
+      assertEquals(expected.size(), actual.size());
+      for (int i = 0; i < expected.size(); i++) {
+        assertTrue(entry.getKey() + "[" + i + "]", MediaBrowserUtils.sameContent(expected.get(i), actual.get(i)));
+      }
+    }
+  }
+
+  @Test
+  public void jsonAgainstReadableMap() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean("mediabrowser.benchmarks"));
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      importFromMap();
+      importFromJson();
+    }
+    long mapNanos = 0;
+    long jsonNanos = 0;
+    for (int i = 0; i < ROUNDS; i++) {
+      long start = System.nanoTime();
+      importFromMap();
+      mapNanos += System.nanoTime() - start;
+
+      start = System.nanoTime();
+      importFromJson();
+      jsonNanos += System.nanoTime() - start;
+    }
+    Log.i(TAG, String.format("%d items: ReadableMap %.2f ms, JSON %.2f ms per import",
+      CATEGORY_COUNT * (ITEMS_PER_CATEGORY + 1), mapNanos / 1e6 / ROUNDS, jsonNanos / 1e6 / ROUNDS));
+  }
+
+  private Map<String, List<MediaBrowserCompat.MediaItem>> importFromMap() throws Exception {
+    ArtworkLoader.Batch artwork = ArtworkLoader.getInstance().newBatch(RuntimeEnvironment.getApplication());
+    return module.buildMediaItemsHierarchy(tree, artwork);
+  }
+
+  private MediaItemsJsonParser importFromJson() throws Exception {
+    ArtworkLoader.Batch artwork = ArtworkLoader.getInstance().newBatch(RuntimeEnvironment.getApplication());
+    return MediaItemsJsonParser.parse(new StringReader(json), true,
+      (description, mediaId, icon) -> module.applyIcon(description, mediaId, icon, artwork));
+  }
+}
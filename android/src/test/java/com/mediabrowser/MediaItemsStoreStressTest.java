@@ -0,0 +1,132 @@
+package com.mediabrowser;
+
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+// Readers racing every kind of write must only ever see whole updates: a child list is published
+// together with the index entries for it, so the index is never behind a list a reader got.
+@RunWith(RobolectricTestRunner.class)
+public class MediaItemsStoreStressTest {
+  private static final String ROOT_ID = "root";
+  private static final String PARENT_ID = "parent";
+  private static final String EXTRA_ID = "extra";
+
+  private static final int ITEM_COUNT = 200;
+  private static final int GENERATIONS = 300;
+  private static final int READERS = 4;
+
+  private final MediaItemsStore store = MediaItemsStore.getInstance();
+
+  @Before
+  public void setUp() {
+    Map<String, List<MediaBrowserCompat.MediaItem>> hierarchy = new HashMap<>();
+    hierarchy.put(ROOT_ID, Collections.singletonList(item(PARENT_ID, 0, MediaBrowserCompat.MediaItem.FLAG_BROWSABLE)));
+    hierarchy.put(PARENT_ID, generation(0));
+    store.setRootId(ROOT_ID);
+    store.setMediaItemsHierarchy(hierarchy);
+  }
+
+  @After
+  public void tearDown() {
+    store.setMediaItemsHierarchy(new HashMap<>());
+  }
+
+  @Test
+  public void readersNeverSeeHalfAppliedUpdates() throws Exception {
+    AtomicBoolean writing = new AtomicBoolean(true);
+    ExecutorService executor = Executors.newFixedThreadPool(READERS);
+    List<Future<Integer>> readers = new ArrayList<>();
+    for (int i = 0; i < READERS; i++) {
+      readers.add(executor.submit(() -> {
+        int reads = 0;
+        while (writing.get()) {
+          checkConsistent();
+          reads++;
+        }
+        return reads;
+      }));
+    }
+
+    try {
+      for (int generation = 1; generation <= GENERATIONS; generation++) {
+        final int current = generation;
+        store.updateMediaItems(PARENT_ID, generation(generation), true);
+        store.updateMediaItem("item-" + (generation % ITEM_COUNT),
+          item -> item(item.getMediaId(), current, MediaBrowserCompat.MediaItem.FLAG_PLAYABLE));
+        store.pushMediaItem(PARENT_ID, item(EXTRA_ID, generation, MediaBrowserCompat.MediaItem.FLAG_PLAYABLE));
+        store.deleteMediaItem(EXTRA_ID);
+      }
+    } finally {
+      writing.set(false);
+      executor.shutdown();
+    }
+    for (Future<Integer> reader : readers) {
+      // Rethrows whatever a reader caught
+      assertTrue(reader.get() > 0);
+    }
+
+    List<MediaBrowserCompat.MediaItem> children = store.getMediaItemsByParentId(PARENT_ID);
+    assertEquals(ITEM_COUNT, children.size());
+    for (MediaBrowserCompat.MediaItem child : children) {
+      assertEquals(GENERATIONS, generationOf(child));
+      assertSame(child, store.getMediaItemById(child.getMediaId()));
+    }
+  }
+
+  private void checkConsistent() {
+    List<MediaBrowserCompat.MediaItem> children = store.getMediaItemsByParentId(PARENT_ID);
+    assertTrue(children.size() == ITEM_COUNT || children.size() == ITEM_COUNT + 1);
+    int listGeneration = generationOf(children.get(0));
+    for (MediaBrowserCompat.MediaItem child : children) {
+      assertEquals(listGeneration, generationOf(child));
+      if (EXTRA_ID.equals(child.getMediaId())) {
+        // May rightly be deleted between the two reads
+        continue;
+      }
+      MediaBrowserCompat.MediaItem indexed = store.getMediaItemById(child.getMediaId());
+      assertNotNull(indexed);
+      assertTrue(generationOf(indexed) >= listGeneration);
+    }
+  }
+
+  private static List<MediaBrowserCompat.MediaItem> generation(int generation) {
+    List<MediaBrowserCompat.MediaItem> items = new ArrayList<>(ITEM_COUNT);
+    for (int i = 0; i < ITEM_COUNT; i++) {
+      items.add(item("item-" + i, generation, MediaBrowserCompat.MediaItem.FLAG_PLAYABLE));
+    }
+    return items;
+  }
+
+  private static MediaBrowserCompat.MediaItem item(String mediaId, int generation, int flags) {
+    MediaDescriptionCompat description = new MediaDescriptionCompat.Builder()
+      .setMediaId(mediaId)
+      .setTitle(String.valueOf(generation))
+      .build();
+    return new MediaBrowserCompat.MediaItem(description, flags);
+  }
+
+  private static int generationOf(MediaBrowserCompat.MediaItem item) {
+    return Integer.parseInt(item.getDescription().getTitle().toString());
+  }
+}
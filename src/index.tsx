@@ -39,6 +39,14 @@ export const CONNECTION_TYPE_NOT_CONNECTED = 0;
 export const CONNECTION_TYPE_NATIVE = 1; // natively running on a head unit (Android Automotive OS).
 export const CONNECTION_TYPE_PROJECTION = 2; // connected to a car head unit by projecting to it (Android Auto).
 
+// Playback states for setPlaybackState, the same values as PlaybackStateCompat.
+export const PLAYBACK_STATE_NONE = 0;
+export const PLAYBACK_STATE_STOPPED = 1;
+export const PLAYBACK_STATE_PAUSED = 2;
+export const PLAYBACK_STATE_PLAYING = 3;
+export const PLAYBACK_STATE_BUFFERING = 6;
+export const PLAYBACK_STATE_ERROR = 7;
+
 // Interface for a media item
 export interface MediaItem {
   id?: string | undefined | null; // unique identifier for the media item
@@ -50,7 +58,8 @@ export interface MediaItem {
   groupTitle?: string | undefined | null; // title for the group this item belongs to
   browsableStyle?: ContentStyle | undefined | null; // style to be applied when the item is displayed in a browsable context
   playableStyle?: ContentStyle | undefined | null; // style to be applied when the item is displayed in a playable context
-  extras?: { [key: string]: string | number } | undefined | null; // extra information associated with the media item
+  extras?: { [key: string]: any } | undefined | null; // extra information associated with the media item, info comes back as an object
+  queueIndex?: number | undefined | null; // position in the queue, set when the car skipped to the item through the queue
 }
 
 // Interface for a structure of media items. It defines the hierarchy of media items.
@@ -59,59 +68,248 @@ interface MediaItemsStructure {
   root: MediaItem[]; // array of root media items
 }
 
+// Interface for a lazy loading request. Answer it with resolveChildren.
+export interface LoadChildrenRequest {
+  requestId: string; // identifier to pass back to resolveChildren
+  parentId: string; // id of the browsable item whose children are needed
+}
+
+// Counters of the shared in-memory artwork cache. Sizes are in bytes.
+export interface ArtworkCacheStats {
+  hits: number;
+  misses: number;
+  evictions: number;
+  size: number;
+  maxSize: number;
+}
+
+// Counters of the native event queue. Events wait in the queue until JS listens for them.
+export interface EventQueueStats {
+  queued: number; // events waiting to be delivered
+  capacity: number;
+  delivered: number;
+  merged: number; // events replaced by a newer one of the same kind
+  dropped: number; // events pushed out of a full queue
+  unobserved: number; // events skipped because nothing listened for them
+}
+
+// Counters of the parcel size budget, since the app started. A list is counted once per time it was sent over budget.
+export interface ParcelBudgetStats {
+  budgetBytes: number;
+  overBudgetLists: number; // lists that needed cutting down
+  truncatedLists: number; // unpaged lists sent without their last items
+  droppedItems: number; // items left out of truncated lists
+  strippedIcons: number; // items sent without their embedded icon
+  strippedInfo: number; // items sent without their info extra
+  oversizedPages: number; // pages still over budget after stripping, use a smaller page size
+}
+
+// A transport control pressed in the car or on a media button. position is in ms, only set for seekTo.
+export interface PlaybackControl {
+  action: 'play' | 'pause' | 'stop' | 'seekTo' | 'skipToNext' | 'skipToPrevious';
+  position?: number;
+}
+
 // Initial setup for listeners
 let mediaItemSelectedListener: EmitterSubscription | null = null;
 let mediaItemBrowseListener: EmitterSubscription | null = null;
 let carConnectedListener: EmitterSubscription | null = null;
+let playbackControlListener: EmitterSubscription | null = null;
+let loadChildrenRequestedListener: EmitterSubscription | null = null;
+
+// Replaces a listener and tells the native side, which only sends events someone listens to
+const replaceListener = (
+  eventName: string,
+  previous: EmitterSubscription | null,
+  listener: (...args: any[]) => any,
+): EmitterSubscription => {
+  if (previous) {
+    previous.remove();
+    MediaBrowser?.unregisterEventListener(eventName);
+  }
+  const subscription = DeviceEventEmitter.addListener(eventName, listener);
+  MediaBrowser?.registerEventListener(eventName);
+  return subscription;
+};
 
 // Wrapper for the MediaBrowser native module
 const MediaBrowserWrapper = {
   ...MediaBrowser,
   // Method to set media items. It converts the media items to a JSON string before passing to the native module.
-  setMediaItems: (items: MediaItemsStructure) => {
-    MediaBrowser?.setMediaItems(items);
+  setMediaItems: (items: MediaItemsStructure): Promise<void> => {
+    return MediaBrowser?.setMediaItems(items);
+  },
+  // Method to set media items from a JSON string with the same shape as setMediaItems.
+  // The native side parses it directly, which is much cheaper than passing a large object over the bridge.
+  setMediaItemsFromJson: (json: string): Promise<void> => {
+    return MediaBrowser?.setMediaItemsFromJson(json);
+  },
+  // Method to set media items from a JSON file (path or file:// uri) with the same shape as setMediaItems.
+  setMediaItemsFromFile: (path: string): Promise<void> => {
+    return MediaBrowser?.setMediaItemsFromFile(path);
   },
   // Method to add a new media item. It converts the media item to a JSON string before passing to the native module.
-  pushMediaItem: (parentId: string, newItem: MediaItem) => {
-    MediaBrowser?.pushMediaItem(parentId, newItem);
+  pushMediaItem: (parentId: string, newItem: MediaItem): Promise<void> => {
+    return MediaBrowser?.pushMediaItem(parentId, newItem);
   },
   // Method to delete a media item by its id.
-  deleteMediaItem: (itemId: string) => {
-    MediaBrowser?.deleteMediaItem(itemId);
+  deleteMediaItem: (itemId: string): Promise<void> => {
+    return MediaBrowser?.deleteMediaItem(itemId);
   },
   // Method to update a media item. It converts the updated media item to a JSON string before passing to the native module.
-  updateMediaItem: (updatedItem: MediaItem) => {
-    MediaBrowser?.updateMediaItem(updatedItem);
+  updateMediaItem: (updatedItem: MediaItem): Promise<void> => {
+    return MediaBrowser?.updateMediaItem(updatedItem);
   },
   // Method to register a listener for media item selection events.
   onMediaItemSelected: (listener: (item: MediaItem) => void) => {
-    if (mediaItemSelectedListener) {
-      mediaItemSelectedListener.remove();
-    }
-    mediaItemSelectedListener = DeviceEventEmitter.addListener(
+    mediaItemSelectedListener = replaceListener(
       'onMediaItemSelected',
+      mediaItemSelectedListener,
       listener,
     );
   },
   // Method to register a listener for browsing events.
   onBrowsableItemSelected: (listener: (item: MediaItem) => void) => {
-    if (mediaItemBrowseListener)  {
-      mediaItemBrowseListener.remove();
-    }
-    mediaItemBrowseListener = DeviceEventEmitter.addListener('onBrowsableItemSelected', listener);
+    mediaItemBrowseListener = replaceListener('onBrowsableItemSelected', mediaItemBrowseListener, listener);
   },
   // Method to update multiple media items under a specific parent ID. 
   // It converts the updated items to a JSON string before passing to the native module.
-  updateMediaItems: (parentId: string, updatedItems: MediaItem[], replace: boolean) => {
-    MediaBrowser?.updateMediaItems(parentId, updatedItems, replace);
+  updateMediaItems: (parentId: string, updatedItems: MediaItem[], replace: boolean): Promise<void> => {
+    return MediaBrowser?.updateMediaItems(parentId, updatedItems, replace);
+  },
+  // Method to set how long (in ms) item changes are collected before clients are told to reload.
+  // Every changed parent is reloaded once per window. Use 0 to notify on the next loop.
+  setNotificationWindow: (windowMs: number): Promise<void> => {
+    return MediaBrowser?.setNotificationWindow(windowMs);
+  },
+  // Method to send any pending change notifications right away.
+  flush: (): Promise<void> => {
+    return MediaBrowser?.flushNotifications();
+  },
+  // Method to cap how many children are sent to clients that don't request a specific page.
+  // Use 0 to always send the full list.
+  setDefaultPageSize: (pageSize: number): Promise<void> => {
+    return MediaBrowser?.setDefaultPageSize(pageSize);
+  },
+  // Method to enable lazy loading. Children that were never set are requested from JS through
+  // onLoadChildrenRequested when a client browses them. Requests not resolved within timeoutMs are answered empty.
+  setLazyLoading: (enabled: boolean, timeoutMs: number = 0): Promise<void> => {
+    return MediaBrowser?.setLazyLoading(enabled, timeoutMs);
+  },
+  // Method to register a listener for lazy loading requests.
+  onLoadChildrenRequested: (listener: (request: LoadChildrenRequest) => void) => {
+    loadChildrenRequestedListener = replaceListener(
+      'onLoadChildrenRequested',
+      loadChildrenRequestedListener,
+      listener,
+    );
+  },
+  // Method to answer a lazy loading request with the children of the requested parent.
+  resolveChildren: (requestId: string, items: MediaItem[]): Promise<void> => {
+    return MediaBrowser?.resolveChildren(requestId, items);
+  },
+  // Method to set how long (in ms) a single icon may take to load before it is skipped.
+  // Icons load in the background and are patched into the items when ready.
+  setArtworkDeadline: (deadlineMs: number): Promise<void> => {
+    return MediaBrowser?.setArtworkDeadline(deadlineMs);
+  },
+  // Method to limit the size of icons embedded in media items. Icons are cropped square to at most
+  // maxSizePx and shrunk further to fit maxBytes. RGB_565 halves the memory but drops transparency.
+  setIconLimits: (maxSizePx: number, maxBytes: number, preferRgb565: boolean = true): Promise<void> => {
+    return MediaBrowser?.setIconLimits(maxSizePx, maxBytes, preferRgb565);
+  },
+  // Method to get the number of bytes used by icons embedded in the stored media items.
+  getIconMemoryUsage: (): Promise<number> => {
+    return MediaBrowser?.getIconMemoryUsage();
+  },
+  // Method to get the hit, miss and eviction counters of the in-memory artwork cache.
+  getArtworkCacheStats: (): Promise<ArtworkCacheStats> => {
+    return MediaBrowser?.getArtworkCacheStats();
+  },
+  // Method to cap the artwork disk cache in bytes. The least recently used files are evicted first.
+  setArtworkDiskCacheSize: (maxBytes: number): Promise<void> => {
+    return MediaBrowser?.setArtworkDiskCacheSize(maxBytes);
+  },
+  // Method to toggle streaming artwork to the car while it is still downloading (enabled by default).
+  setArtworkStreaming: (enabled: boolean): Promise<void> => {
+    return MediaBrowser?.setArtworkStreaming(enabled);
+  },
+  // Method to choose how artwork content uris point back to their remote uri. Encoded uris carry the
+  // remote uri themselves and keep working after the app process restarts. Mapped uris are kept in
+  // memory, at most maxMappedUris of them.
+  setArtworkUriMapping: (encode: boolean, maxMappedUris: number = 0): Promise<void> => {
+    return MediaBrowser?.setArtworkUriMapping(encode, maxMappedUris);
+  },
+  // Method to download the icons of the children of the given parents (and their children, depth levels down)
+  // in the background, so clients browsing them don't wait on the network. Remote icons are served to clients
+  // through the artwork provider from the disk cache, local icons that weren't decoded in time are retried.
+  prefetchArtwork: (parentIds: string[], depth: number = 1): Promise<void> => {
+    return MediaBrowser?.prefetchArtwork(parentIds, depth);
+  },
+  // Method to prefetch artwork automatically, depth levels down from whatever setMediaItems or updateMediaItems changed.
+  setAutoPrefetchArtwork: (enabled: boolean, depth: number = 2): Promise<void> => {
+    return MediaBrowser?.setAutoPrefetchArtwork(enabled, depth);
+  },
+  // Method to set the playback queue from media item ids. Skipping through it in the car is handled natively,
+  // the new item is then reported through onMediaItemSelected with its queueIndex.
+  setQueue: (mediaIds: string[], currentIndex: number = 0, title: string | null = null): Promise<void> => {
+    return MediaBrowser?.setQueue(mediaIds, currentIndex, title);
+  },
+  // Method to set how many queue items around the current one are published to the car at a time.
+  setQueueWindowSize: (windowSize: number): Promise<void> => {
+    return MediaBrowser?.setQueueWindowSize(windowSize);
+  },
+  // Method to report playback to the car. Call it as often as convenient: while playing the car extrapolates
+  // the position itself, so a report is only passed on when the state or speed changes or the position drifts.
+  setPlaybackState: (
+    state: number,
+    positionMs: number,
+    speed: number = 1,
+    bufferedPositionMs: number = 0,
+    errorMessage: string | null = null,
+  ): Promise<void> => {
+    return MediaBrowser?.setPlaybackState(state, positionMs, speed, bufferedPositionMs, errorMessage);
+  },
+  // Method to set how far (in ms) a reported position may drift from the extrapolated one before it is passed on.
+  setPlaybackPositionDriftThreshold: (driftThresholdMs: number): Promise<void> => {
+    return MediaBrowser?.setPlaybackPositionDriftThreshold(driftThresholdMs);
+  },
+  // Method to get how many playback reports were passed on to the car and how many were skipped.
+  getPlaybackStateStats: (): Promise<{ published: number; skipped: number }> => {
+    return MediaBrowser?.getPlaybackStateStats();
+  },
+  // Method to cap (in bytes) how much a single child list sent to a client may take. Lists over it lose their
+  // embedded icons first, then their info extras, largest first. Unpaged lists are then cut short, pages never
+  // are. The binder limit is 1MB per process.
+  setParcelBudget: (budgetBytes: number): Promise<void> => {
+    return MediaBrowser?.setParcelBudget(budgetBytes);
+  },
+  // Method to get how often child lists went over the parcel budget and what was left out to fit them.
+  getParcelBudgetStats: (): Promise<ParcelBudgetStats> => {
+    return MediaBrowser?.getParcelBudgetStats();
+  },
+  // Method to choose whether extras keys are interned while converting media items (on by default, items usually share their keys).
+  setInternExtrasKeys: (internExtrasKeys: boolean): Promise<void> => {
+    return MediaBrowser?.setInternExtrasKeys(internExtrasKeys);
+  },
+  // Method to set how many events are kept for delivery while JS isn't listening yet (the oldest are dropped first).
+  setPendingEventCapacity: (capacity: number): Promise<void> => {
+    return MediaBrowser?.setPendingEventCapacity(capacity);
+  },
+  // Method to get the depth of the native event queue and how many events were merged, dropped or unobserved.
+  getEventQueueStats: (): Promise<EventQueueStats> => {
+    return MediaBrowser?.getEventQueueStats();
+  },
+  // Method to register a listener for transport controls (play, pause, stop, seek, and skips the native queue
+  // can't answer). Report the resulting playback state with setPlaybackState.
+  onPlaybackControl: (listener: (control: PlaybackControl) => void) => {
+    playbackControlListener = replaceListener('onPlaybackControl', playbackControlListener, listener);
   },
   // Method to register a listener for car connection change events.
-  onCarConnectionChanged: (listener: EmitterSubscription) => {
-    if (carConnectedListener) {
-      carConnectedListener.remove();
-    }
-    carConnectedListener = DeviceEventEmitter.addListener(
+  onCarConnectionChanged: (listener: (connectionType: number) => void) => {
+    carConnectedListener = replaceListener(
       'onCarConnectionChanged',
+      carConnectedListener,
       listener,
     );
   },